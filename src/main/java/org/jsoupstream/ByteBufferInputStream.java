@@ -0,0 +1,213 @@
+package org.jsoupstream;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Unsynchronized InputStream over a ByteBuffer. Unlike BufferedInputStream no monitor is taken per call and
+ * bulk reads are served straight from the buffer. Subclasses can supply more input by overriding nextBuffer().
+ */
+class ByteBufferInputStream extends InputStream
+{
+    private static final int BUFSIZ = 8192;
+
+    protected ByteBuffer buffer;
+    protected int markPos = -1; // position of the mark in buffer, -1 if not marked
+    protected int markLimit = 0;
+
+    ByteBufferInputStream( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Called when the buffer has been read to its limit.
+     *
+     * @return false if there is no more input
+     */
+    protected boolean nextBuffer() throws IOException
+    {
+        return false;
+    }
+
+    public int read() throws IOException
+    {
+        if ( ! buffer.hasRemaining() && ! nextBuffer() )
+        {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+
+        // what the buffer has, only waiting for the next one when it is used up
+        if ( ! buffer.hasRemaining() && ! nextBuffer() )
+        {
+            return -1;
+        }
+        int num_read = Math.min( len, buffer.remaining() );
+        buffer.get( b, off, num_read );
+
+        return num_read;
+    }
+
+    public int available()
+    {
+        return buffer.remaining();
+    }
+
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    public void mark( int readLimit )
+    {
+        markPos = buffer.position();
+        markLimit = readLimit;
+    }
+
+    public void reset() throws IOException
+    {
+        if ( markPos < 0 )
+        {
+            throw new IOException( "Resetting to invalid mark" );
+        }
+        buffer.position( markPos );
+    }
+
+    public long transferTo( OutputStream out ) throws IOException
+    {
+        long transferred = 0;
+        byte[] chunk = null;
+
+        markPos = -1;
+        do
+        {
+            int num = buffer.remaining();
+            if ( buffer.hasArray() )
+            {
+                out.write( buffer.array(), buffer.arrayOffset() + buffer.position(), num );
+                buffer.position( buffer.limit() );
+            }
+            else
+            {
+                if ( chunk == null )
+                {
+                    chunk = new byte[BUFSIZ];
+                }
+                while ( buffer.hasRemaining() )
+                {
+                    int len = Math.min( chunk.length, buffer.remaining() );
+                    buffer.get( chunk, 0, len );
+                    out.write( chunk, 0, len );
+                }
+            }
+            transferred += num;
+        }
+        while ( nextBuffer() );
+
+        return transferred;
+    }
+
+    public long transferTo( WritableByteChannel out ) throws IOException
+    {
+        long transferred = 0;
+
+        markPos = -1;
+        do
+        {
+            while ( buffer.hasRemaining() )
+            {
+                transferred += out.write( buffer );
+            }
+        }
+        while ( nextBuffer() );
+
+        return transferred;
+    }
+
+    /**
+     * Reads a ReadableByteChannel through a reusable buffer, keeping any marked bytes when it is refilled. Only
+     * blocking channels are supported, a read waits for the channel like the read of any InputStream.
+     */
+    static class ChannelInputStream extends ByteBufferInputStream
+    {
+        private final ReadableByteChannel channel;
+
+        ChannelInputStream( ReadableByteChannel channel )
+        {
+            super( ByteBuffer.allocate( BUFSIZ ).flip() );
+            checkBlocking( channel );
+            this.channel = channel;
+        }
+
+        // a non-blocking channel reads 0 bytes whenever nothing has arrived, HtmlPushParser is for those
+        private static void checkBlocking( ReadableByteChannel channel )
+        {
+            if ( channel instanceof SelectableChannel && ! ((SelectableChannel)channel).isBlocking() )
+            {
+                throw new IllegalArgumentException( "non-blocking channels are not supported" );
+            }
+        }
+
+        protected boolean nextBuffer() throws IOException
+        {
+            if ( markPos >= 0 && ( buffer.position() - markPos ) > markLimit )
+            {
+                markPos = -1;
+            }
+
+            int keep = ( markPos >= 0 ) ? markPos : buffer.position();
+            int readPos = buffer.position() - keep;
+
+            buffer.position( keep );
+            buffer.compact();
+            if ( ! buffer.hasRemaining() )
+            {
+                // the marked bytes fill the whole buffer
+                ByteBuffer larger = ByteBuffer.allocate( buffer.capacity() + BUFSIZ );
+                buffer.flip();
+                larger.put( buffer );
+                buffer = larger;
+            }
+
+            // a blocking channel only reads 0 bytes into a full buffer, which this one is not
+            if ( channel.read( buffer ) == 0 )
+            {
+                checkBlocking( channel );
+                throw new IOException( "channel read no bytes" );
+            }
+            buffer.flip();
+            buffer.position( readPos );
+            if ( markPos >= 0 )
+            {
+                markPos = 0;
+            }
+
+            return buffer.hasRemaining();
+        }
+
+        public long transferTo( OutputStream out ) throws IOException
+        {
+            return transferTo( Channels.newChannel( out ) );
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.jsoupstream;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Finds structural bytes in the lexer's window. The word scanner reads 8 bytes at a time and tests all of
+ * them with a few arithmetic operations (SIMD within a register), the scalar scanner compares byte by byte.
+ * Both return the same positions.
+ */
+abstract class ByteScanner
+{
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle( long[].class, ByteOrder.LITTLE_ENDIAN );
+
+    static final ByteScanner SCALAR = new ByteScanner()
+    {
+        int indexOf( byte[] bytes, int from, int to, byte b )
+        {
+            while ( from < to && bytes[from] != b )
+            {
+                from++;
+            }
+            return from;
+        }
+    };
+
+    static final ByteScanner WORD = new ByteScanner()
+    {
+        int indexOf( byte[] bytes, int from, int to, byte b )
+        {
+            long pattern = ( b & 0xFFL ) * ONES;
+
+            while ( (to - from) >= 8 )
+            {
+                long word = (long)LONGS.get( bytes, from ) ^ pattern;
+                // the high bit is set in each byte that was zero, i.e. equal to b. Bits above the lowest one
+                // can be false positives, the lowest one is always exact.
+                long found = ( word - ONES ) & ~word & HIGHS;
+                if ( found != 0 )
+                {
+                    return from + ( Long.numberOfTrailingZeros( found ) >>> 3 );
+                }
+                from += 8;
+            }
+
+            return SCALAR.indexOf( bytes, from, to, b );
+        }
+    };
+
+    /**
+     * @return the position of the first b in bytes from (inclusive) to to (exclusive), or to if there is none
+     */
+    abstract int indexOf( byte[] bytes, int from, int to, byte b );
+}
@@ -2,7 +2,7 @@ package org.jsoupstream;
 
 import java.util.List;
 import java.util.ListIterator;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
@@ -19,20 +19,18 @@ import org.jsoupstream.selector.Selector;
  */
 public class Functions
 {
-    private static HashMap<String, Pattern> patterns = new HashMap<String, Pattern>();
+    private static ConcurrentHashMap<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
 
     public Functions() {}
 
     public boolean delete(Selector selector, List<HtmlToken> tokenQueue)
     {
         ListIterator<HtmlToken> lit = tokenQueue.listIterator();
-        HtmlToken token;
 
         while ( lit.hasNext() )
         {
-            token = lit.next();
+            lit.next();
             lit.remove();
-            HtmlToken.relinquish( token );
         }
 
         return true;
@@ -45,7 +43,7 @@ public class Functions
         while ( lit.hasNext() )
         {
             HtmlToken token = lit.next();
-            System.out.print( token.str );
+            System.out.print( token.getString() );
         }
         System.out.println( "]]" );
 
@@ -59,7 +57,7 @@ public class Functions
         while ( lit.hasNext() )
         {
             HtmlToken token = lit.next();
-            System.err.print( token.str );
+            System.err.print( token.getString() );
         }
         System.err.println( "]]" );
 
@@ -74,10 +72,9 @@ public class Functions
             HtmlToken token = lit.next();
             if ( token.type == HtmlToken.Type.ATTRIBUTE_NAME )
             {
-                if ( attr.equalsIgnoreCase( token.str ) )
+                if ( attr.equalsIgnoreCase( token.getString() ) )
                 {
                     lit.set( HtmlToken.getToken( newAttr.getBytes(), HtmlToken.Type.ATTRIBUTE_NAME ) );
-                    HtmlToken.relinquish( token );
                     return true;
                 }
             }
@@ -126,7 +123,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.ATTRIBUTE_NAME )
             {
-                if ( attr.equalsIgnoreCase( token.str ) )
+                if ( attr.equalsIgnoreCase( token.getString() ) )
                 {
                     found = true;
                 }
@@ -140,7 +137,7 @@ public class Functions
                 if ( token.type == HtmlToken.Type.ATTRIBUTE_VALUE )
                 {
                     StringBuffer newValue = new StringBuffer( );
-                    String value = token.str;
+                    String value = token.getString();
                     char quote = value.charAt( 0 );
                     String arr[] = value.substring( 1, value.length() - 1 ).split( " +" );
                     boolean first = true;
@@ -163,7 +160,6 @@ public class Functions
                     newValue.append( addValue );
                     newValue.append( quote );
                     lit.set( HtmlToken.getToken( newValue.toString().getBytes(), HtmlToken.Type.ATTRIBUTE_VALUE ) );
-                    HtmlToken.relinquish( token );
                     return true;
                 }
                 else if ( token.type != HtmlToken.Type.WHITESPACE && token.type != HtmlToken.Type.EQUALS )
@@ -194,7 +190,6 @@ public class Functions
             {
                 lit.remove();
             }
-            HtmlToken.relinquish( token );
         }
 
         return true;
@@ -220,7 +215,6 @@ public class Functions
                 {
                     lit.remove();
                 }
-                HtmlToken.relinquish( token );
             }
         }
 
@@ -245,9 +239,8 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.TEXT )
             {
-                matcher = compiledPattern.matcher( token.str );
+                matcher = compiledPattern.matcher( token.getString() );
                 lit.set( HtmlToken.getToken( (matcher.replaceAll( text )).getBytes(), HtmlToken.Type.TEXT ) );
-                HtmlToken.relinquish( token );
             }
         }
 
@@ -278,7 +271,6 @@ public class Functions
                 {
                     lit.remove();
                 }
-                HtmlToken.relinquish( token );
             }
             count++;
             if ( token.type == HtmlToken.Type.CLOSE_TAG )
@@ -328,7 +320,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.TEXT )
             {
-                if ( token.str.contains( value ) )
+                if ( token.getString().contains( value ) )
                 {
                     return true;
                 }
@@ -348,7 +340,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.TEXT )
             {
-                if ( token.str.contains( value ) )
+                if ( token.getString().contains( value ) )
                 {
                     return false;
                 }
@@ -368,7 +360,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.TEXT )
             {
-                if ( token.str.toLowerCase().contains( value.toLowerCase() ) )
+                if ( token.getString().toLowerCase().contains( value.toLowerCase() ) )
                 {
                     return true;
                 }
@@ -388,7 +380,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.TEXT )
             {
-                if ( token.str.toLowerCase().contains( value.toLowerCase() ) )
+                if ( token.getString().toLowerCase().contains( value.toLowerCase() ) )
                 {
                     return false;
                 }
@@ -409,7 +401,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.COMMENT )
             {
-                if ( token.str.contains( value ) )
+                if ( token.getString().contains( value ) )
                 {
                     return true;
                 }
@@ -429,7 +421,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.COMMENT )
             {
-                if ( token.str.contains( value ) )
+                if ( token.getString().contains( value ) )
                 {
                     return false;
                 }
@@ -449,7 +441,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.COMMENT )
             {
-                if ( token.str.toLowerCase().contains( value.toLowerCase() ) )
+                if ( token.getString().toLowerCase().contains( value.toLowerCase() ) )
                 {
                     return true;
                 }
@@ -469,7 +461,7 @@ public class Functions
             token = lit.next();
             if ( token.type == HtmlToken.Type.COMMENT )
             {
-                if ( token.str.toLowerCase().contains( value.toLowerCase() ) )
+                if ( token.getString().toLowerCase().contains( value.toLowerCase() ) )
                 {
                     return false;
                 }
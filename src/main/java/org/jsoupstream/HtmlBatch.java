@@ -0,0 +1,365 @@
+package org.jsoupstream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.jsoupstream.selector.MatchState;
+
+/**
+ * Parses many documents in parallel with one HtmlParser. The documents are split between the workers of a
+ * work-stealing ForkJoinPool, all sharing the compiled stylesheet of the parser and each reusing its own
+ * match state from one document to the next.
+ *
+ * <pre>
+ *   HtmlBatch batch = new HtmlBatch( parser );
+ *   batch.setListener( result -&gt; log( result ) );
+ *   HtmlBatch.Report report = batch.parseAll( paths, OutputSink.directory( out ) );
+ * </pre>
+ *
+ * A document that fails does not stop the batch, its error is kept in its Result. Neither does a listener that
+ * throws, its exceptions are kept in the Report.
+ */
+public class HtmlBatch
+{
+    private final HtmlParser parser;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean ordered = false;
+    private Consumer<Result> listener = null;
+
+    public HtmlBatch( HtmlParser parser )
+    {
+        this.parser = parser;
+    }
+
+    /**
+     * The number of worker threads, by default one per processor.
+     */
+    public void setParallelism( int parallelism )
+    {
+        if ( parallelism < 1 )
+        {
+            throw new IllegalArgumentException( "parallelism must be at least 1" );
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Whether the listener gets the results in the order of the documents (held back until all earlier
+     * documents are done) or as the documents finish. Unordered by default.
+     */
+    public void setOrdered( boolean ordered )
+    {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Receives the Result of every document. It is never called by two threads at once, but is not called with
+     * a lock held either: the worker that finishes a document while another one is in the listener hands its
+     * result over and goes on to the next document.
+     */
+    public void setListener( Consumer<Result> listener )
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Parses the documents and writes each to the stream the sink opens for it. Returns once all are done.
+     */
+    public Report parseAll( Collection<Path> documents, OutputSink sink )
+    {
+        Run run = new Run( documents.toArray( new Path[0] ), sink );
+        ForkJoinPool pool = new ForkJoinPool( parallelism );
+        long started = System.nanoTime();
+
+        try
+        {
+            pool.invoke( run.new Range( 0, run.documents.length ) );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        return new Report( run.documents.length, run.bytes.get(), ( System.nanoTime() - started ), run.failures,
+            run.listenerErrors );
+    }
+
+    /**
+     * The state of one call to parseAll().
+     */
+    private class Run
+    {
+        private final Path[] documents;
+        private final OutputSink sink;
+        private final ThreadLocal<MatchState> states;
+        private final AtomicLong bytes = new AtomicLong();
+        private final List<Result> failures = Collections.synchronizedList( new ArrayList<Result>() );
+        private final List<RuntimeException> listenerErrors =
+            Collections.synchronizedList( new ArrayList<RuntimeException>() );
+
+        // results finished ahead of an earlier document, when ordered
+        private final HashMap<Integer, Result> waiting = new HashMap<Integer, Result>();
+        private int next = 0;
+
+        // results to hand to the listener, in order, and whether a worker is doing so
+        private final ArrayDeque<Result> ready = new ArrayDeque<Result>();
+        private boolean delivering = false;
+
+        Run( Path[] documents, OutputSink sink )
+        {
+            this.documents = documents;
+            this.sink = sink;
+            this.states = ThreadLocal.withInitial( () -> parser.getStylesheet().newMatchState() );
+        }
+
+        /**
+         * Splits its documents in halves until a single one is left, idle workers steal the other halves.
+         */
+        private class Range extends RecursiveAction
+        {
+            private static final long serialVersionUID = 1L;
+
+            private final int start;
+            private final int end;
+
+            Range( int start, int end )
+            {
+                this.start = start;
+                this.end = end;
+            }
+
+            protected void compute()
+            {
+                if ( end - start > 1 )
+                {
+                    int middle = ( start + end ) >>> 1;
+                    invokeAll( new Range( start, middle ), new Range( middle, end ) );
+                }
+                else if ( end > start )
+                {
+                    deliver( parse( start ) );
+                }
+            }
+        }
+
+        private Result parse( int index )
+        {
+            Path document = documents[index];
+            MatchState state = states.get();
+            long started = System.nanoTime();
+            long size = 0;
+            Exception error = null;
+
+            state.reset();
+            try ( HtmlLexer lexer = new HtmlLexer( document ); OutputStream out = sink.open( document ) )
+            {
+                size = Files.size( document );
+                parser.parse( lexer, out, state );
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                error = e;
+            }
+
+            bytes.addAndGet( size );
+            Result result = new Result( index, document, size, ( System.nanoTime() - started ), error );
+            if ( error != null )
+            {
+                failures.add( result );
+            }
+            return result;
+        }
+
+        // Queues the results that can go to the listener now. The first worker to find nobody delivering calls
+        // the listener, outside the lock, until the queue is empty, the others return to parsing at once.
+        private void deliver( Result result )
+        {
+            if ( listener == null )
+            {
+                return;
+            }
+
+            synchronized ( this )
+            {
+                if ( ordered )
+                {
+                    waiting.put( result.getIndex(), result );
+                    while ( (result = waiting.remove( next )) != null )
+                    {
+                        ready.add( result );
+                        next++;
+                    }
+                }
+                else
+                {
+                    ready.add( result );
+                }
+
+                if ( delivering )
+                {
+                    return;
+                }
+                delivering = true;
+            }
+
+            while ( true )
+            {
+                synchronized ( this )
+                {
+                    result = ready.poll();
+                    if ( result == null )
+                    {
+                        delivering = false;
+                        return;
+                    }
+                }
+
+                try
+                {
+                    listener.accept( result );
+                }
+                catch ( RuntimeException e )
+                {
+                    listenerErrors.add( e );
+                }
+            }
+        }
+    }
+
+    /**
+     * The outcome of one document.
+     */
+    public static class Result
+    {
+        private final int index;
+        private final Path document;
+        private final long bytes;
+        private final long nanos;
+        private final Exception error;
+
+        Result( int index, Path document, long bytes, long nanos, Exception error )
+        {
+            this.index = index;
+            this.document = document;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        // position of the document in the collection passed to parseAll()
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public Path getDocument()
+        {
+            return document;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        public boolean isSuccess()
+        {
+            return error == null;
+        }
+
+        // null if the document was parsed
+        public Exception getError()
+        {
+            return error;
+        }
+
+        public String toString()
+        {
+            if ( error == null )
+            {
+                return document + ": " + bytes + " bytes in " + ( nanos / 1000000 ) + " ms";
+            }
+            return document + ": " + error;
+        }
+    }
+
+    /**
+     * Totals and throughput of a batch.
+     */
+    public static class Report
+    {
+        private final int documents;
+        private final long bytes;
+        private final long nanos;
+        private final List<Result> failures;
+        private final List<RuntimeException> listenerErrors;
+
+        Report( int documents, long bytes, long nanos, List<Result> failures, List<RuntimeException> listenerErrors )
+        {
+            this.documents = documents;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.failures = Collections.unmodifiableList( new ArrayList<Result>( failures ) );
+            this.listenerErrors = Collections.unmodifiableList( new ArrayList<RuntimeException>( listenerErrors ) );
+        }
+
+        public int getDocuments()
+        {
+            return documents;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        public List<Result> getFailures()
+        {
+            return failures;
+        }
+
+        // thrown by the listener, the other results were still delivered
+        public List<RuntimeException> getListenerErrors()
+        {
+            return listenerErrors;
+        }
+
+        public double getDocumentsPerSecond()
+        {
+            return ( nanos == 0 ) ? 0 : documents * 1e9 / nanos;
+        }
+
+        public double getBytesPerSecond()
+        {
+            return ( nanos == 0 ) ? 0 : bytes * 1e9 / nanos;
+        }
+
+        public String toString()
+        {
+            return String.format( "%d documents (%d failed), %d bytes in %d ms: %.1f documents/s, %.1f MB/s",
+                documents, failures.size(), bytes, ( nanos / 1000000 ), getDocumentsPerSecond(),
+                ( getBytesPerSecond() / ( 1024 * 1024 ) ) );
+        }
+    }
+}
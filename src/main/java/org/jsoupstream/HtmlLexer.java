@@ -1,23 +1,27 @@
 package org.jsoupstream;
 
-import java.util.List;
-import java.util.ArrayList;
-import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Lexical analyzer for HTML. Returns a token each time advance() is called.
+ *
+ * The input is read in bulk into a window owned by the lexer and bytes are classified through 256 entry
+ * lookup tables, one per kind of token being scanned.
  */
-public class HtmlLexer
+public class HtmlLexer implements Closeable
 {
     private static final int BUFSIZ = 4096;
     private static enum State {
@@ -37,485 +41,809 @@ public class HtmlLexer
         EOF
     }
 
+    // Byte classes returned by the scanner tables. A token ends at the first byte with a class other than
+    // CONTINUE, the class tells which state the lexer moves to.
+    private static final byte CONTINUE = 0;
+    private static final byte STOP = 1;          // stop, next state IN_TAG
+    private static final byte STOP_IN_TEXT = 2;  // stop, next state IN_TEXT
+    private static final byte STOP_NAME = 3;     // stop, next state IN_ATTRIBUTE_NAME when in a tag
+
+    // Classes of the first byte of a token when in BEGIN, IN_TAG or IN_TEXT
+    private static final byte OTHER = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte LESS_THAN = 2;
+    private static final byte SLASH = 3;
+    private static final byte EQUALS = 4;
+    private static final byte GREATER_THAN = 5;
+
+    private static final byte[] FIRST_BYTE = new byte[256];
+    private static final byte[] WHITESPACE_END = new byte[256];
+    private static final byte[] TAG_NAME_END = new byte[256];
+    private static final byte[] ATTRIBUTE_NAME_END = new byte[256];
+    private static final byte[] ATTRIBUTE_VALUE_END = new byte[256];
+    static {
+        Arrays.fill( WHITESPACE_END, STOP_NAME );
+        for ( int b = 0; b < 256; b++ )
+        {
+            if ( Character.isWhitespace( b ) )
+            {
+                FIRST_BYTE[b] = WHITESPACE;
+                WHITESPACE_END[b] = CONTINUE;
+                TAG_NAME_END[b] = STOP;
+                ATTRIBUTE_NAME_END[b] = STOP;
+                ATTRIBUTE_VALUE_END[b] = STOP;
+            }
+        }
+        FIRST_BYTE['<'] = LESS_THAN;
+        FIRST_BYTE['/'] = SLASH;
+        FIRST_BYTE['='] = EQUALS;
+        FIRST_BYTE['>'] = GREATER_THAN;
+        WHITESPACE_END['='] = STOP;
+        WHITESPACE_END['/'] = STOP;
+        WHITESPACE_END['>'] = STOP;
+        TAG_NAME_END['/'] = STOP_IN_TEXT;
+        TAG_NAME_END['>'] = STOP_IN_TEXT;
+        ATTRIBUTE_NAME_END['='] = STOP;
+        ATTRIBUTE_NAME_END['>'] = STOP_IN_TEXT;
+        ATTRIBUTE_VALUE_END['>'] = STOP_IN_TEXT;
+    }
+
+    private static final byte[] COMMENT_END = { '-', '-', '>' };
+    private static final byte[] CDATA_END = { ']', ']', '>' };
+    private static final byte[] TAG_END = { '>' };
+    private static final byte[] TEXT_END = { '<' };
+    private static final byte[] CDATA_START = { '!', '[', 'C', 'D', 'A', 'T', 'A', '[' };
+
+    /**
+     * Thrown when a lexer fed with feed() needs more input to finish the current token.
+     */
+    private static class NeedInput extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        NeedInput()
+        {
+            super( "more input needed" );
+        }
+
+        // thrown for control flow only, the stack trace is never looked at
+        public Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+    private static final NeedInput NEED_INPUT = new NeedInput();
+
     private InputStream in;
+    private boolean eof = false; // the input stream has been read to the end
     private Charset charset = StandardCharsets.UTF_8;
-    private byte[] buffer = new byte[BUFSIZ];
-    private int pos = 0; // where currently positioned in the buffer
+    private TokenArena arena = new TokenArena();
+
+    // The lexer reads the input in bulk into its own window. Bytes from start to pos are the current token,
+    // bytes from pos to limit have been read but not lexed yet.
+    private byte[] window = new byte[BUFSIZ * 2];
+    private int start = 0;
+    private int pos = 0;
+    private int limit = 0;
+
+    // Tags, attributes and whitespace are returned in pieces of at most bufferLength - 1 bytes. The limit grows
+    // after long comments, scripts and text, which keeps the token boundaries of the original lexer.
+    private int bufferLength = BUFSIZ;
+
+    private ByteScanner scanner = ByteScanner.SCALAR;
+
+    // Where a search for the end of a text, comment or CDATA token that ran out of pushed input left off
+    private int resume = -1;
+
     private byte current_quote = ' ';
     private State state = State.BEGIN;
+    private boolean capped = false; // the last token was cut at bufferLength
 
     public HtmlLexer(String html, Charset charset)
     {
         this.charset = charset;
-        this.in = new ByteArrayInputStream( html.getBytes( charset ) );
+        this.in = new ByteBufferInputStream( ByteBuffer.wrap( html.getBytes( charset ) ) );
     }
 
     public void setCharset(Charset charset)
     {
         this.charset = charset;
-        HtmlToken.setCharset( charset );
+    }
+
+    // The tokens returned are allocated from this arena and given back to it once written
+    TokenArena getArena()
+    {
+        return arena;
+    }
+
+    /**
+     * Text, comments, CDATA sections and scripts are scanned for their end 8 bytes at a time when enabled.
+     * The tokens returned are the same either way.
+     */
+    public void setWordScanning(boolean enabled)
+    {
+        this.scanner = enabled ? ByteScanner.WORD : ByteScanner.SCALAR;
+    }
+
+    /**
+     * Creates a lexer that does not read its input but is fed it in chunks with feed() and finish().
+     */
+    public HtmlLexer()
+    {
+        this.in = null;
     }
 
     public HtmlLexer(InputStream in)
     {
-        if ( ! in.markSupported() )
+        // no BufferedInputStream needed, the lexer reads into its own window
+        this.in = in;
+    }
+
+    /**
+     * Lexes the remaining bytes of the buffer. The position of the passed buffer is not changed.
+     */
+    public HtmlLexer(ByteBuffer buffer)
+    {
+        this.in = new ByteBufferInputStream( buffer.slice() );
+    }
+
+    /**
+     * Lexes the channel from its current position. A FileChannel is memory mapped, any other channel is read
+     * through a reusable buffer and must be blocking, a non-blocking channel is fed to an HtmlPushParser instead.
+     *
+     * @throws IllegalArgumentException if the channel is a SelectableChannel in non-blocking mode
+     */
+    public HtmlLexer(ReadableByteChannel channel) throws IOException
+    {
+        if ( channel instanceof FileChannel )
         {
-            this.in = new BufferedInputStream( in );
+            this.in = new MappedFileInputStream( (FileChannel)channel );
         }
         else
         {
-            this.in = in;
+            this.in = new ByteBufferInputStream.ChannelInputStream( channel );
+        }
+    }
+
+    /**
+     * Lexes the array in place from offset to its end. Past the start of the array the lexer guesses it is
+     * in text, which is right whenever offset is at a '<' outside of a tag, comment or CDATA section.
+     */
+    HtmlLexer(byte[] input, int offset, TokenArena arena)
+    {
+        this.in = null;
+        this.eof = true;
+        this.window = input;
+        this.start = offset;
+        this.pos = offset;
+        this.limit = input.length;
+        this.arena = arena;
+        if ( offset > 0 )
+        {
+            this.state = State.IN_TEXT;
         }
     }
 
+    /**
+     * Memory maps the file and reads it from the mapping, without a read() system call per buffer. The lexer still
+     * copies what it scans into its window. The lexer should be closed when done to release the file.
+     */
+    public HtmlLexer(Path path) throws IOException
+    {
+        this( FileChannel.open( path, StandardOpenOption.READ ) );
+    }
+
+    /**
+     * Returns the next token. A lexer that is fed its input with feed() returns null when the input fed so far
+     * ends in the middle of a token, the token is returned by a later call once more input has been fed.
+     */
     public HtmlToken advance()
     {
+        State startState = state;
+        byte startQuote = current_quote;
+
         try
         {
-            pos = 0;
+            HtmlToken token = lex();
+            resume = -1;
+            return token;
+        }
+        catch (NeedInput e)
+        {
+            // back out of the partial token, it is lexed again from its start
+            pos = start;
+            state = startState;
+            current_quote = startQuote;
+            return null;
+        }
+        catch (IOException e)
+        {
+            state = State.EOF;
+        }
 
-            switch ( state )
-            {
-            case EOF:
-                return HtmlToken.getToken( null, 0, 0, HtmlToken.Type.EOF, charset );
+        return arena.allocate( null, 0, 0, HtmlToken.Type.UNKNOWN, charset );
+    }
 
-            case IN_PROCESSING_INSTRUCTION:
-                return getProcessingInstruction();
+    // Where the next token starts. For a lexer created over an array this is the offset into the array.
+    int position()
+    {
+        return pos;
+    }
 
-            case IN_DOCTYPE:
-                return getDocType();
+    // Everything besides the position that decides the next token, other than bufferLength
+    int getStateKey()
+    {
+        return state.ordinal() | ( (current_quote & 0xFF) << 8 );
+    }
 
-            case IN_COMMENT:
-                return getComment();
+    int getBufferLength()
+    {
+        return bufferLength;
+    }
 
-            case IN_COMMENT_END:
-                pos += this.read( buffer, pos, 3 );
-                state = State.IN_TEXT;
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.END_COMMENT, charset );
+    void setBufferLength(int bufferLength)
+    {
+        this.bufferLength = bufferLength;
+    }
 
-            case IN_CDATA:
-                return getCdata();
+    // True when the token last returned would have been longer with a larger bufferLength
+    boolean isCapped()
+    {
+        return capped;
+    }
 
-            case IN_CDATA_END:
-                pos += this.read( buffer, pos, 3 );
-                state = State.IN_TEXT;
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.END_CDATA, charset );
+    private HtmlToken lex() throws IOException
+    {
+        start = pos;
+        capped = false;
 
-            case IN_OPEN_TAG:
-            case IN_CLOSE_TAG:
-                return getTag();
+        switch ( state )
+        {
+        case EOF:
+            return arena.allocate( null, 0, 0, HtmlToken.Type.EOF, charset );
 
-            case IN_ATTRIBUTE_NAME:
-                return getAttributeName();
+        case IN_PROCESSING_INSTRUCTION:
+            return getProcessingInstruction();
 
-            case IN_ATTRIBUTE_VALUE:
-                // attribute value may be returned in multiple chunks if > BUFSIZ
-                return getAttributeValue();
+        case IN_DOCTYPE:
+            return getDocType();
 
-            default:
-                int ch = this.read();
-                if ( ch < 0 )
-                {
-                    state = State.EOF;
-                    return HtmlToken.getToken( null, 0, 0, HtmlToken.Type.EOF, charset );
-                }
-                buffer[pos++] = (byte)ch;
+        case IN_COMMENT:
+            return getComment();
 
-                if ( Character.isWhitespace( ch ) )
-                {
-                    return getWhitespace();
-                }
+        case IN_COMMENT_END:
+            pos += ensure( 3 );
+            state = State.IN_TEXT;
+            return getToken( HtmlToken.Type.END_COMMENT );
 
-                switch ( ch )
-                {
-                case '<':
-                    peek(3);
+        case IN_CDATA:
+            return getCdata();
 
-                    switch ( buffer[1] )
-                    {
-                    case '!':
-                        if ( buffer[2] == '-' && buffer[3] == '-' )
-                        {
-                            pos += this.read( buffer, pos, 3 );
-                            state = State.IN_COMMENT;
-                            return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.START_COMMENT, charset );
-                        }
-                        else if ( peek(8) == 8 && compareStringToBuffer( "<![CDATA[" ) == 0 )
-                        {
-                            pos += this.read( buffer, pos, 8 );
-                            state = State.IN_CDATA;
-                            return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.START_CDATA, charset );
-                        }
-                        else 
-                        {
-                            state = State.IN_DOCTYPE;
-                            return getDocType();
-                        }
-                    case '/':
-                        pos += this.read( buffer, pos, 1 );
-                        state = State.IN_CLOSE_TAG;
-                        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.OPEN_END_TAG, charset );
-                    case '?':
-                        state = State.IN_PROCESSING_INSTRUCTION;
-                        return getProcessingInstruction();
-                    default:
-                        state = State.IN_OPEN_TAG;
-                        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.OPEN_TAG, charset );
-                    }
-                case '/':
-                    peek(1);
+        case IN_CDATA_END:
+            pos += ensure( 3 );
+            state = State.IN_TEXT;
+            return getToken( HtmlToken.Type.END_CDATA );
+
+        case IN_OPEN_TAG:
+        case IN_CLOSE_TAG:
+            return getTag();
 
-                    if ( buffer[1] == '>' )
+        case IN_ATTRIBUTE_NAME:
+            return getAttributeName();
+
+        case IN_ATTRIBUTE_VALUE:
+            // attribute value may be returned in multiple chunks if > bufferLength
+            return getAttributeValue();
+
+        default:
+            if ( pos == limit && ! fill() )
+            {
+                state = State.EOF;
+                return arena.allocate( null, 0, 0, HtmlToken.Type.EOF, charset );
+            }
+
+            switch ( FIRST_BYTE[window[pos++] & 0xFF] )
+            {
+            case WHITESPACE:
+                return getWhitespace();
+            case LESS_THAN:
+                ensure( 3 );
+                switch ( lookahead( 0 ) )
+                {
+                case '!':
+                    if ( lookahead( 1 ) == '-' && lookahead( 2 ) == '-' )
                     {
-                        pos += this.read( buffer, pos, 1 );
-                        state = State.IN_TEXT;
-                        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.END_SELF_CLOSING_TAG, charset );
+                        pos += 3;
+                        state = State.IN_COMMENT;
+                        return getToken( HtmlToken.Type.START_COMMENT );
                     }
-                    else
+                    else if ( ensure( CDATA_START.length ) == CDATA_START.length && matches( CDATA_START ) )
                     {
-                        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.TEXT, charset );
+                        pos += CDATA_START.length;
+                        state = State.IN_CDATA;
+                        return getToken( HtmlToken.Type.START_CDATA );
                     }
-                case '=':
-                    if ( state == State.IN_TAG )
+                    else
                     {
-                        state = State.IN_ATTRIBUTE_VALUE;
+                        state = State.IN_DOCTYPE;
+                        return getDocType();
                     }
-
-                    return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.EQUALS, charset );
-                case '>':
-                    state = State.IN_TEXT;
-                    return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.CLOSE_TAG, charset );
+                case '/':
+                    pos++;
+                    state = State.IN_CLOSE_TAG;
+                    return getToken( HtmlToken.Type.OPEN_END_TAG );
+                case '?':
+                    state = State.IN_PROCESSING_INSTRUCTION;
+                    return getProcessingInstruction();
                 default:
-                    if ( state == State.IN_TEXT )
-                    {
-                        return getText();
-                    }
+                    state = State.IN_OPEN_TAG;
+                    return getToken( HtmlToken.Type.OPEN_TAG );
+                }
+            case SLASH:
+                ensure( 1 );
+                if ( lookahead( 0 ) == '>' )
+                {
+                    pos++;
+                    state = State.IN_TEXT;
+                    return getToken( HtmlToken.Type.END_SELF_CLOSING_TAG );
+                }
+                else
+                {
+                    return getToken( HtmlToken.Type.TEXT );
+                }
+            case EQUALS:
+                if ( state == State.IN_TAG )
+                {
+                    state = State.IN_ATTRIBUTE_VALUE;
+                }
 
-                    return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.UNKNOWN, charset );
+                return getToken( HtmlToken.Type.EQUALS );
+            case GREATER_THAN:
+                state = State.IN_TEXT;
+                return getToken( HtmlToken.Type.CLOSE_TAG );
+            default:
+                if ( state == State.IN_TEXT )
+                {
+                    return getText();
                 }
+
+                return getToken( HtmlToken.Type.UNKNOWN );
             }
         }
-        catch (Exception e)
-        {
-        }
+    }
 
-        return HtmlToken.getToken( null, 0, pos, HtmlToken.Type.UNKNOWN, charset );
+    private HtmlToken getToken( HtmlToken.Type type )
+    {
+        return arena.allocate( window, start, (pos - start), type, charset );
     }
 
-    private int compareStringToBuffer( String s )
+    /**
+     * Reads more input into the window, moving the current token to the front or growing the window when it is
+     * full.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException
     {
-        for (int i = 0; i < s.length(); i++)
+        if ( eof )
+        {
+            return false;
+        }
+
+        if ( in == null )
+        {
+            throw NEED_INPUT;
+        }
+
+        if ( limit == window.length )
         {
-            if ( s.charAt(i) != buffer[i] )
+            if ( start > 0 )
+            {
+                System.arraycopy( window, start, window, 0, (limit - start) );
+                pos -= start;
+                limit -= start;
+                start = 0;
+            }
+            else
             {
-                return ( s.charAt(i) - buffer[i] );
+                window = Arrays.copyOf( window, (window.length * 2) );
             }
         }
 
-        return 0;
-    }
+        int num_read = in.read( window, limit, (window.length - limit) );
+        if ( num_read < 0 )
+        {
+            eof = true;
+            return false;
+        }
+        limit += num_read;
 
-    private int read() throws IOException
-    {
-        return in.read();
+        return true;
     }
 
-    public int read( byte[] buffer, int offset, int num ) throws IOException
+    /**
+     * Makes sure how_far bytes past pos are in the window if the input has them.
+     *
+     * @return the number of bytes available, at most how_far
+     */
+    private int ensure( int how_far ) throws IOException
     {
-        return in.read( buffer, offset, num );
-    }
+        while ( (limit - pos) < how_far && fill() )
+        {
+        }
 
+        return Math.min( how_far, (limit - pos) );
+    }
 
-    private void reset( ) throws IOException
+    // the byte at pos + offset or -1 if past the end of the input. ensure() must have been called first.
+    private int lookahead( int offset )
     {
-        in.reset();
+        return ( (pos + offset) < limit ) ? window[pos + offset] : -1;
     }
 
-    private void mark( int readLimit )
+    private boolean matches( byte[] bytes )
     {
-        in.mark( readLimit );
-    }
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            if ( window[pos + i] != bytes[i] )
+            {
+                return false;
+            }
+        }
 
+        return true;
+    }
 
-    private int peek(int how_far) throws IOException
+    /**
+     * Advances pos until the table gives a class other than CONTINUE, the token reaches max bytes or the input
+     * ends.
+     *
+     * @return the class of the byte that ended the token, CONTINUE at max bytes or -1 at the end of the input
+     */
+    private int scan( byte[] table, int max ) throws IOException
     {
-        int num_read;
-
-        if ( pos >= (buffer.length - 1) )
+        while ( (pos - start) < max )
         {
-            return 0;
+            if ( pos == limit && ! fill() )
+            {
+                return -1;
+            }
+
+            int end = Math.min( limit, (start + max) );
+            while ( pos < end )
+            {
+                byte cls = table[window[pos] & 0xFF];
+                if ( cls != CONTINUE )
+                {
+                    return cls;
+                }
+                pos++;
+            }
         }
 
-        if ( (pos + how_far) >= buffer.length )
+        capped = true;
+        return CONTINUE;
+    }
+
+    public int read( byte[] buffer, int offset, int num ) throws IOException
+    {
+        // hand out what was read ahead into the window first
+        if ( pos < limit )
         {
-            how_far = buffer.length - pos - 1;
+            int num_read = Math.min( num, (limit - pos) );
+            System.arraycopy( window, pos, buffer, offset, num_read );
+            pos += num_read;
+            return num_read;
         }
 
-        this.mark(how_far);
-        num_read = this.read(buffer, pos, how_far);
-        if ( num_read >= 0 )
+        if ( eof || in == null )
         {
-            this.reset();
+            return -1;
         }
 
-        return num_read;
+        return in.read( buffer, offset, num );
     }
 
-    private void advanceTo( String str, boolean inclusive, State state ) throws IOException
+    /**
+     * Copies the remaining (unlexed) input to the OutputStream without decoding it.
+     */
+    public long transferTo( OutputStream out ) throws IOException
     {
-        int num_read;
-        byte[] bytes = str.getBytes( charset );
-        int buf_end = buffer.length - bytes.length;
+        long transferred = (limit - pos);
 
-        while ( state != State.EOF )
+        out.write( window, pos, (limit - pos) );
+        pos = limit;
+        if ( ! eof && in != null )
         {
-            while ( pos < buf_end )
-            {
-                num_read = peek( bytes.length );
-                if ( num_read < 0 )
-                {
-                    state = State.EOF;
-                    break;
-                }
-
-                if ( num_read == bytes.length && buffer[pos] == bytes[0] )
-                {
-                    boolean match = true;
-                    for ( int i = 1; i < bytes.length; i++ )
-                    {
-                        if ( buffer[pos+i] != bytes[i] )
-                        {
-                            match = false;
-                            break;
-                        }
-                    }
-                    if ( match )
-                    {
-                        if ( inclusive )
-                        {
-                            for ( int i = 0; i < bytes.length; i++ )
-                            {
-                                buffer[pos++] = (byte)this.read();
-                            }
-                        }
-                        this.state = state;
-                        return;
-                    }
-                }
-                buffer[pos++] = (byte)this.read();
-            }
-
-            // reallocate a larger buffer for this token
-            buffer = Arrays.copyOfRange( buffer, 0, (buffer.length + BUFSIZ) );
-            buf_end = buffer.length - bytes.length;
+            transferred += in.transferTo( out );
         }
 
-        state = State.EOF;
-        return;
+        return transferred;
     }
 
-    private HtmlToken getWhitespace() throws IOException
+    /**
+     * Copies the remaining (unlexed) input to the channel. For a memory mapped file the bytes are moved with
+     * FileChannel.transferTo.
+     */
+    public long transferTo( WritableByteChannel out ) throws IOException
     {
-        int num_read;
-        int buf_end = buffer.length - 1;
+        ByteBuffer rest = ByteBuffer.wrap( window, pos, (limit - pos) );
+        long transferred = rest.remaining();
 
-        if ( state == State.IN_TEXT )
+        while ( rest.hasRemaining() )
         {
-            return getText();
+            out.write( rest );
         }
+        pos = limit;
 
-        while ( pos < buf_end )
+        if ( ! eof && in != null )
         {
-            num_read = peek(1);
-            if ( num_read < 0 )
+            if ( in instanceof ByteBufferInputStream )
             {
-                state = State.EOF;
-                break;
+                transferred += ((ByteBufferInputStream)in).transferTo( out );
             }
-
-            if ( ! Character.isWhitespace( (char)buffer[pos] ) )
+            else
             {
-                if ( state == State.IN_TAG && buffer[pos] != '=' && buffer[pos] != '/' && buffer[pos] != '>' )
-                {
-                    state = State.IN_ATTRIBUTE_NAME;
-                }
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.WHITESPACE, charset );
+                transferred += in.transferTo( Channels.newOutputStream( out ) );
             }
-            buffer[pos++] = (byte)this.read();
         }
 
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.WHITESPACE, charset );
+        return transferred;
     }
 
-    private void advanceString(byte quote) throws IOException
+    /**
+     * Appends a chunk of input for a lexer created with HtmlLexer(). All remaining bytes of the chunk are
+     * copied, so the chunk can be reused as soon as the call returns.
+     */
+    public void feed( ByteBuffer chunk )
     {
-        int ch;
-        int buf_end = buffer.length - 1;
+        int num = chunk.remaining();
 
-        while ( pos < buf_end )
+        if ( num > (window.length - limit) )
         {
-            ch = this.read();
-            if ( ch < 0 )
+            // drop the bytes of the tokens already returned
+            System.arraycopy( window, pos, window, 0, (limit - pos) );
+            if ( resume >= 0 )
             {
-                state = State.EOF;
-                break;
+                resume -= pos;
             }
-            buffer[pos++] = (byte)ch;
+            limit -= pos;
+            start = 0;
+            pos = 0;
 
-            if ( ch == quote )
+            if ( num > (window.length - limit) )
             {
-                return;
+                window = Arrays.copyOf( window, Math.max( (window.length * 2), (limit + num) ) );
             }
         }
 
-        return;
+        chunk.get( window, limit, num );
+        limit += num;
     }
 
-    private HtmlToken getTag() throws IOException
+    /**
+     * Marks the end of the input fed to the lexer. The tokens left are returned by advance(), ending with EOF.
+     */
+    public void finish()
+    {
+        eof = true;
+    }
+
+    public void close() throws IOException
+    {
+        if ( in != null )
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Scans up to and including (when inclusive) the delimiter and moves to newState. When the input ends first
+     * the lexer moves to EOF.
+     */
+    private void advanceTo( byte[] delimiter, boolean inclusive, State newState ) throws IOException
+    {
+        try
+        {
+            scanTo( delimiter, inclusive, newState );
+        }
+        catch (NeedInput e)
+        {
+            // the bytes up to here hold no delimiter, no need to search them again once more input is fed
+            resume = pos;
+            throw e;
+        }
+    }
+
+    private void scanTo( byte[] delimiter, boolean inclusive, State newState ) throws IOException
     {
-        int num_read;
-        int buf_end = buffer.length - 1;
+        byte first = delimiter[0];
+
+        if ( resume > pos )
+        {
+            pos = resume;
+        }
 
-        while ( pos < buf_end )
+        while ( true )
         {
-            num_read = peek(1);
-            if ( num_read < 0 )
+            if ( pos == limit && ! fill() )
             {
+                // the original lexer grew its buffer once more at the end of the input
+                growBufferLength( delimiter.length );
+                bufferLength += BUFSIZ;
                 state = State.EOF;
-                break;
+                return;
             }
 
-            if ( Character.isWhitespace( (char)buffer[pos] ) )
-            {
-                state = State.IN_TAG;
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.TAG_NAME, charset );
-            }
-            else if ( buffer[pos] == '/' || buffer[pos] == '>' )
+            pos = scanner.indexOf( window, pos, limit, first );
+
+            if ( pos < limit )
             {
-                state = State.IN_TEXT;
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.TAG_NAME, charset );
+                if ( ensure( delimiter.length ) < delimiter.length )
+                {
+                    // too few bytes left to hold the delimiter
+                    pos = limit;
+                }
+                else if ( matches( delimiter ) )
+                {
+                    growBufferLength( delimiter.length );
+                    if ( inclusive )
+                    {
+                        pos += delimiter.length;
+                    }
+                    this.state = newState;
+                    return;
+                }
+                else
+                {
+                    pos++;
+                }
             }
-            buffer[pos++] = (byte)this.read();
         }
+    }
 
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.TAG_NAME, charset );
+    private void growBufferLength( int delimiterLength )
+    {
+        while ( (pos - start) >= (bufferLength - delimiterLength) )
+        {
+            bufferLength += BUFSIZ;
+        }
     }
 
-    private HtmlToken getAttributeName() throws IOException
+    private HtmlToken getWhitespace() throws IOException
     {
-        int num_read;
-        int buf_end = buffer.length - 1;
+        if ( state == State.IN_TEXT )
+        {
+            return getText();
+        }
 
-        while ( pos < buf_end )
+        switch ( scan( WHITESPACE_END, (bufferLength - 1) ) )
         {
-            num_read = peek(1);
-            if ( num_read < 0 )
+        case -1:
+            state = State.EOF;
+            break;
+        case STOP_NAME:
+            if ( state == State.IN_TAG )
             {
-                state = State.EOF;
-                break;
+                state = State.IN_ATTRIBUTE_NAME;
             }
+            break;
+        default:
+            break;
+        }
 
-            if ( Character.isWhitespace( (char)buffer[pos] ) || buffer[pos] == '=' )
-            {
-                state = State.IN_TAG;
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.ATTRIBUTE_NAME, charset );
-            }
-            else if ( buffer[pos] == '>' )
-            {
-                state = State.IN_TEXT;
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.ATTRIBUTE_NAME, charset );
-            }
-            buffer[pos++] = (byte)this.read();
+        return getToken( HtmlToken.Type.WHITESPACE );
+    }
+
+    private void setStateAfter( int cls )
+    {
+        switch ( cls )
+        {
+        case -1:
+            state = State.EOF;
+            break;
+        case STOP:
+            state = State.IN_TAG;
+            break;
+        case STOP_IN_TEXT:
+            state = State.IN_TEXT;
+            break;
+        default:
+            break;
         }
+    }
 
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.ATTRIBUTE_NAME, charset );
+    private HtmlToken getTag() throws IOException
+    {
+        setStateAfter( scan( TAG_NAME_END, (bufferLength - 1) ) );
+        return getToken( HtmlToken.Type.TAG_NAME );
     }
 
-    private HtmlToken getAttributeValue() throws IOException
+    private HtmlToken getAttributeName() throws IOException
     {
-        int num_read;
-        int buf_end = buffer.length - 1;
+        setStateAfter( scan( ATTRIBUTE_NAME_END, (bufferLength - 1) ) );
+        return getToken( HtmlToken.Type.ATTRIBUTE_NAME );
+    }
 
-        num_read = peek(1);
-        if ( num_read < 0 )
+    private HtmlToken getAttributeValue() throws IOException
+    {
+        if ( ensure( 1 ) == 0 )
         {
             state = State.EOF;
-            return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.UNKNOWN, charset );
+            return getToken( HtmlToken.Type.UNKNOWN );
         }
 
-        if ( Character.isWhitespace( (char)buffer[pos] ) )
+        byte b = window[pos];
+        if ( FIRST_BYTE[b & 0xFF] == WHITESPACE )
         {
             return getWhitespace();
         }
 
-        if ( buffer[pos] == '"' || buffer[pos] == '\'' || current_quote != ' ' )
+        if ( b == '"' || b == '\'' || current_quote != ' ' )
         {
             if ( current_quote == ' ' )
             {
-                current_quote = buffer[pos];
+                current_quote = b;
             }
-            buffer[pos++] = (byte)this.read();
-            advanceString( current_quote );
-            if ( buffer[pos-1] == current_quote )
-            {
-                current_quote = ' ';
-                state = State.IN_TAG;
-            }
-            return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.ATTRIBUTE_VALUE, charset );
-        }
+            pos++;
 
-        while ( pos < buf_end )
-        {
-            num_read = peek(1);
-            if ( num_read < 0 )
+            // read to the closing quote
+            while ( (pos - start) < (bufferLength - 1) )
             {
-                state = State.EOF;
-                break;
+                if ( pos == limit && ! fill() )
+                {
+                    state = State.EOF;
+                    break;
+                }
+                if ( window[pos++] == current_quote )
+                {
+                    break;
+                }
             }
 
-            if ( Character.isWhitespace( (char)buffer[pos] ) )
+            if ( window[pos - 1] == current_quote )
             {
+                current_quote = ' ';
                 state = State.IN_TAG;
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.ATTRIBUTE_VALUE, charset );
             }
-            else if ( buffer[pos] == '>' )
+            else if ( state != State.EOF )
             {
-                state = State.IN_TEXT;
-                return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.ATTRIBUTE_VALUE, charset );
+                capped = true;
             }
-            buffer[pos++] = (byte)this.read();
+            return getToken( HtmlToken.Type.ATTRIBUTE_VALUE );
         }
 
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.ATTRIBUTE_VALUE, charset );
+        setStateAfter( scan( ATTRIBUTE_VALUE_END, (bufferLength - 1) ) );
+        return getToken( HtmlToken.Type.ATTRIBUTE_VALUE );
     }
 
     private HtmlToken getComment() throws IOException
     {
-        advanceTo( "-->", false, State.IN_COMMENT_END );
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.COMMENT, charset );
+        advanceTo( COMMENT_END, false, State.IN_COMMENT_END );
+        return getToken( HtmlToken.Type.COMMENT );
     }
 
     private HtmlToken getCdata() throws IOException
     {
-        advanceTo( "]]>", false, State.IN_CDATA_END );
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.CDATA, charset );
+        advanceTo( CDATA_END, false, State.IN_CDATA_END );
+        return getToken( HtmlToken.Type.CDATA );
     }
 
     private HtmlToken getProcessingInstruction() throws IOException
     {
-        advanceTo( ">", true, State.IN_TEXT );
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.PROCESSING_INSTRUCTION, charset );
+        advanceTo( TAG_END, true, State.IN_TEXT );
+        return getToken( HtmlToken.Type.PROCESSING_INSTRUCTION );
     }
 
     private HtmlToken getDocType() throws IOException
     {
-        advanceTo( ">", true, State.IN_TEXT );
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.DOCTYPE, charset );
+        advanceTo( TAG_END, true, State.IN_TEXT );
+        return getToken( HtmlToken.Type.DOCTYPE );
     }
 
     private HtmlToken getText() throws IOException
     {
-        advanceTo( "<", false, State.IN_TEXT );
-        return HtmlToken.getToken( buffer, 0, pos, HtmlToken.Type.TEXT, charset );
+        advanceTo( TEXT_END, false, State.IN_TEXT );
+        return getToken( HtmlToken.Type.TEXT );
     }
 }
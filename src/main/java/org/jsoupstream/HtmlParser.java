@@ -2,24 +2,31 @@ package org.jsoupstream;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Deque;
 import java.util.HashSet;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
-import java.util.Iterator;
 import java.io.FileInputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Writer;
+import java.io.StringWriter;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.net.URL;
+import org.jsoupstream.selector.MatchState;
 import org.jsoupstream.selector.Parser;
 import org.jsoupstream.selector.Selector;
+import org.jsoupstream.selector.Stylesheet;
 import org.jsoupstream.selector.ParseException;
 
 /**
@@ -30,8 +37,6 @@ import org.jsoupstream.selector.ParseException;
  */
 public class HtmlParser {
 
-    private static final int BUFSIZ = 8192;
-
     private static enum State
     {
         NOT_IN_TAG,
@@ -42,24 +47,24 @@ public class HtmlParser {
         IN_END_TAG
     }
 
-    private static ArrayList<String> minimizeSkipTags = new ArrayList<String>();
-    static {
-        minimizeSkipTags.add( "pre" );
-        minimizeSkipTags.add( "script" );
-    }
+    private static final List<String> DEFAULT_MINIMIZE_SKIP_TAGS =
+            Collections.unmodifiableList( Arrays.asList( "pre", "script" ) );
+
+    // runs each stage of parsePipelined() (and a PrefetchInputStream) on a thread of its own
+    static final Executor PIPELINE_THREADS = task -> {
+        Thread thread = new Thread( task, "jsoupstream-pipeline" );
+        thread.setDaemon( true );
+        thread.start();
+    };
 
-    private List<Selector> selectors;
+    private final Stylesheet stylesheet;
     private Charset charset;
     private boolean minimizeHtml = false;
-    private boolean suppressMinimizeHtml = false;
+    private volatile List<String> minimizeSkipTags = DEFAULT_MINIMIZE_SKIP_TAGS; // replaced, never changed
 
     public HtmlParser( InputStream selectorCss ) throws ParseException, IOException
     {
-        this.charset = StandardCharsets.UTF_8;
-
-        // Parse the CSS here so we can reuse it over many HTML files.
-        Parser parser = new Parser( selectorCss );
-        this.selectors = parser.parse();
+        this( selectorCss, StandardCharsets.UTF_8 );
     }
 
     public HtmlParser( InputStream selectorCss, Charset charset ) throws ParseException, IOException
@@ -68,7 +73,32 @@ public class HtmlParser {
 
         // Parse the CSS here so we can reuse it over many HTML files.
         Parser parser = new Parser( selectorCss );
-        this.selectors = parser.parse();
+        this.stylesheet = parser.parse();
+    }
+
+    /**
+     * Creates a parser for an already compiled stylesheet. The match state is kept per document, so one
+     * HtmlParser (or any number sharing the Stylesheet) can parse documents on several threads at once.
+     */
+    public HtmlParser( Stylesheet stylesheet )
+    {
+        this( stylesheet, StandardCharsets.UTF_8 );
+    }
+
+    public HtmlParser( Stylesheet stylesheet, Charset charset )
+    {
+        this.stylesheet = stylesheet;
+        this.charset = charset;
+    }
+
+    public Stylesheet getStylesheet()
+    {
+        return stylesheet;
+    }
+
+    Charset getCharset()
+    {
+        return charset;
     }
 
     public void setMinimizeHtml( boolean minimizeHtml )
@@ -76,40 +106,283 @@ public class HtmlParser {
         this.minimizeHtml = minimizeHtml; 
     }
 
+    /**
+     * The tags whose content is not minimized, pre and script by default. Only documents started afterwards use
+     * the new tags, those being parsed keep the ones they started with.
+     */
     public void setMinimizeSkipTags( Collection<String> skipTags )
     {
-        HtmlParser.minimizeSkipTags.clear( ); 
-        HtmlParser.minimizeSkipTags.addAll( skipTags ); 
+        this.minimizeSkipTags = Collections.unmodifiableList( new ArrayList<String>( skipTags ) );
     }
 
     public String parse ( HtmlLexer lexer ) throws IOException
     {
-        State prevState = HtmlParser.State.NOT_IN_TAG;
-        State state = HtmlParser.State.NOT_IN_TAG;
-        StringBuffer outBuffer = new StringBuffer();
-        Integer start;
-        int currentLevel = 0;
-        ArrayList<Deque<HtmlToken>> stack = new ArrayList<Deque<HtmlToken>>();
-        Deque<HtmlToken> stackTokens;
-        HtmlToken stackToken;
-        ArrayList<HtmlToken> tokenBuffer = new ArrayList<HtmlToken>(100);
-        ArrayDeque<Integer> bufferingStart = new ArrayDeque<Integer>();
-        ArrayList<Selector> deferredExecute = new ArrayList<Selector>();
+        StringWriter out = new StringWriter();
+        parse( lexer, HtmlWriter.of( out, charset ) );
+        return out.toString();
+    }
+
+    /**
+     * Parses the document and writes the result to the OutputStream (encoded with the parser's charset) as the
+     * tokens are released, so memory use is bounded by the largest buffered match rather than the document size.
+     * The stream is flushed but not closed.
+     */
+    public void parse ( HtmlLexer lexer, OutputStream out ) throws IOException
+    {
+        parse( lexer, HtmlWriter.of( out, charset ) );
+    }
+
+    public void parse ( HtmlLexer lexer, Writer out ) throws IOException
+    {
+        parse( lexer, HtmlWriter.of( out, charset ) );
+    }
+
+    public void parse ( HtmlLexer lexer, WritableByteChannel out ) throws IOException
+    {
+        parse( lexer, HtmlWriter.of( out, charset ) );
+    }
+
+    /**
+     * Parses the documents in parallel, one worker per processor. See HtmlBatch for the order of the results
+     * and the other settings.
+     */
+    public HtmlBatch.Report parseAll ( Collection<Path> documents, OutputSink sink )
+    {
+        return new HtmlBatch( this ).parseAll( documents, sink );
+    }
+
+    /**
+     * Parses a document held in memory, lexing it in chunks on the common ForkJoinPool while the tokens already
+     * lexed are matched. Only worth it for documents of many megabytes, the output is the same as parse().
+     */
+    public void parseParallel ( byte[] html, OutputStream out ) throws IOException
+    {
+        parseParallel( html, out, ForkJoinPool.commonPool(), ParallelLexer.DEFAULT_CHUNK_SIZE );
+    }
+
+    /**
+     * Parses the document as parseParallel() does, lexing chunks of chunkSize bytes with the executor.
+     */
+    public void parseParallel ( byte[] html, OutputStream out, Executor executor, int chunkSize ) throws IOException
+    {
+        int lookahead = 2 * Runtime.getRuntime().availableProcessors();
+        if ( executor instanceof ForkJoinPool )
+        {
+            lookahead = 2 * ((ForkJoinPool)executor).getParallelism();
+        }
+
+        ParallelLexer lexer = new ParallelLexer( html, executor, charset, chunkSize, lookahead );
+        HtmlWriter writer = HtmlWriter.of( out, charset );
+        Document document = new Document( writer, lexer.getArena(), stylesheet.newMatchState() );
+
+        try
+        {
+            HtmlToken token = lexer.advance();
+            while ( token.type != HtmlToken.Type.EOF )
+            {
+                if ( ! document.process( token ) )
+                {
+                    // the rest of the input is copied straight through
+                    writer.transferFrom( lexer.rest() );
+                    break;
+                }
+
+                token = lexer.advance();
+            }
+        }
+        finally
+        {
+            lexer.close();
+        }
+
+        document.finish();
+
+        writer.flush();
+    }
+
+    /**
+     * Parses the document with lexing, matching and writing the output each on their own thread, so for a
+     * large document the three overlap. The output is the same as parse(). The calling thread does the
+     * matching, the other two stages run on new daemon threads.
+     */
+    public void parsePipelined ( HtmlLexer lexer, OutputStream out ) throws IOException
+    {
+        parsePipelined( lexer, out, PIPELINE_THREADS, true );
+    }
+
+    /**
+     * Parses the document as parsePipelined() does, running the lexer (and the writer when writeBehind is set)
+     * with the executor. The executor must start each stage right away, as the stages wait on each other.
+     */
+    public void parsePipelined ( HtmlLexer lexer, OutputStream out, Executor executor, boolean writeBehind ) throws IOException
+    {
+        lexer.setCharset( charset );
+
+        WriteBehindOutputStream behind = writeBehind ? new WriteBehindOutputStream( out, executor ) : null;
+        HtmlWriter writer = HtmlWriter.of( writeBehind ? behind : out, charset );
+        PipelinedLexer tokens = new PipelinedLexer( lexer, executor, PipelinedLexer.RING_SIZE );
+        Document document = new Document( writer, tokens.getArena(), stylesheet.newMatchState() );
+        Throwable failure = null;
+
+        try
+        {
+            HtmlToken token = tokens.advance();
+            while ( token.type != HtmlToken.Type.EOF )
+            {
+                if ( ! document.process( token ) )
+                {
+                    // the rest of the input is copied straight through
+                    tokens.transferRest( writer );
+                    break;
+                }
+
+                token = tokens.advance();
+            }
+
+            document.finish();
+
+            writer.flush();
+        }
+        catch (Throwable t)
+        {
+            failure = t;
+            throw t;
+        }
+        finally
+        {
+            // stopping the other stages can fail too, that is only thrown when nothing else failed
+            IOException stopping = null;
+            try
+            {
+                tokens.close();
+            }
+            catch (IOException e)
+            {
+                stopping = e;
+            }
+            if ( behind != null )
+            {
+                try
+                {
+                    behind.finish();
+                }
+                catch (IOException e)
+                {
+                    if ( stopping == null )
+                    {
+                        stopping = e;
+                    }
+                    else
+                    {
+                        stopping.addSuppressed( e );
+                    }
+                }
+            }
+            if ( stopping != null )
+            {
+                if ( failure == null )
+                {
+                    throw stopping;
+                }
+                failure.addSuppressed( stopping );
+            }
+        }
+    }
+
+    private void parse ( HtmlLexer lexer, HtmlWriter out ) throws IOException
+    {
+        parse( lexer, out, stylesheet.newMatchState() );
+    }
+
+    // Parses with match state that has been used before, it must have been reset
+    void parse ( HtmlLexer lexer, OutputStream out, MatchState state ) throws IOException
+    {
+        parse( lexer, HtmlWriter.of( out, charset ), state );
+    }
+
+    private void parse ( HtmlLexer lexer, HtmlWriter out, MatchState state ) throws IOException
+    {
+        Document document = new Document( out, lexer.getArena(), state );
         HtmlToken token = lexer.advance();
-        String currentTag = null;
-        int endTagStart = 0;
-        boolean passThru = false;
-        boolean matchedCdata = false;
-        int cdataSequence = 0;
-        boolean matchedComment = false;
-        int commentSequence = 0;
-        List<HtmlToken> tokenQueue;
 
         lexer.setCharset( charset );
 
         while ( token.type != HtmlToken.Type.EOF )
         {
-            if ( activeSelectorCount(deferredExecute) == 0 && ! minimizeHtml )
+            if ( ! document.process( token ) )
+            {
+                // the rest of the input is copied straight through
+                out.transferFrom( lexer );
+                break;
+            }
+
+            token = lexer.advance();
+        }
+
+        document.finish();
+
+        out.flush();
+    }
+
+    Document newDocument( HtmlWriter out, TokenArena arena )
+    {
+        return new Document( out, arena, stylesheet.newMatchState() );
+    }
+
+    /**
+     * The state of one document being parsed. Tokens are handed to process() one at a time, so the parse can be
+     * driven by a loop over the lexer or suspended between chunks of pushed input.
+     */
+    class Document
+    {
+        private final HtmlWriter out;
+        private final TokenArena arena;
+        private final MatchState matchState;
+        private final List<Selector> selectors;
+        private final List<String> minimizeSkipTags = HtmlParser.this.minimizeSkipTags;
+        private State prevState = HtmlParser.State.NOT_IN_TAG;
+        private State state = HtmlParser.State.NOT_IN_TAG;
+        private int currentLevel = 0;
+        private ArrayList<StackFrame> stack = new ArrayList<StackFrame>();
+        private ArrayList<HtmlToken> tokenBuffer = new ArrayList<HtmlToken>(100);
+        private ArrayDeque<Integer> bufferingStart = new ArrayDeque<Integer>();
+        private ArrayList<Selector> deferredExecute = new ArrayList<Selector>();
+        private String currentTag = null;
+        private int endTagStart = 0;
+        private boolean passThru = false;
+        private boolean matchedCdata = false;
+        private int cdataSequence = 0;
+        private boolean matchedComment = false;
+        private int commentSequence = 0;
+        private boolean suppressMinimizeHtml = false;
+
+        Document( HtmlWriter out, TokenArena arena, MatchState state )
+        {
+            this.out = out;
+            this.arena = arena;
+            this.matchState = state;
+            this.selectors = state.getSelectors();
+        }
+
+        boolean isPassThru()
+        {
+            return passThru;
+        }
+
+        /**
+         * Handles the next token of the document.
+         *
+         * @return false once all selectors have been satisfied. The token and everything buffered has been
+         * written and the rest of the input can be copied straight through.
+         */
+        boolean process( HtmlToken token ) throws IOException
+        {
+            Integer start;
+            StackFrame frame;
+            HtmlToken stackToken;
+            List<HtmlToken> tokenQueue;
+
+            if ( ! hasActiveSelectors() && ! minimizeHtml )
             {
                 // all selectors have been satified - no more parsing required
                 passThru = true;
@@ -117,61 +390,14 @@ public class HtmlParser {
                 {
                     for ( HtmlToken tok : tokenBuffer )
                     {
-                        outBuffer.append( tok.str );
-                        HtmlToken.relinquish( tok );
+                        out.write( tok );
+                        arena.release( tok );
                     }
                     tokenBuffer.clear();
                 }
-                outBuffer.append( token.str );
-                HtmlToken.relinquish( token );
-                byte[] buffer = new byte[BUFSIZ];
-                ArrayDeque<Byte> unicode = new ArrayDeque<Byte>();
-                int num = lexer.read( buffer, 0, BUFSIZ );
-                int offset = 0;
-                while ( num > 0 )
-                {
-                    // back off any partially read Unicode value
-                    offset = 0;
-                    if ( this.charset == StandardCharsets.UTF_8 )
-                    {
-                        while ( (buffer[num - offset - 1] & 0x80) == 0x80 )
-                        {
-                            offset++;
-                            if ( (buffer[num - offset] & 0x40) == 0x40 )
-                            {
-                                if ( ( (buffer[num - offset] & 0xE0) == 0xC0 && offset == 2 )
-                                    || ( (buffer[num - offset] & 0xF0) == 0xE0 && offset == 3 )
-                                    || ( (buffer[num - offset] & 0xF8) == 0xF0 && offset == 4 ) )
-                                {
-                                    // full unicode value on buffer
-                                    offset = 0;
-                                }
-                                break;
-                            }
-                        }
-
-                        // store partially read Unicode value
-                        while ( offset > 0 )
-                        {
-                            num--;
-                            unicode.push( Byte.valueOf( buffer[num] ) );
-                            buffer[num] = (byte)0;
-                            offset--;
-                        }
-                    }
-
-                    outBuffer.append( new String( buffer, 0, num, charset ) );
- 
-                    // restore partially read Unicode value to buffer
-                    while ( unicode.size() > 0 )
-                    {
-                        buffer[offset++] = unicode.pop( );
-                    }
-
-                    num = lexer.read( buffer, offset, (BUFSIZ - offset) );
-                    num += offset;
-                }
-                break;
+                out.write( token );
+                arena.release( token );
+                return false;
             }
 
             if ( bufferingStart.size() == 0 )
@@ -180,8 +406,8 @@ public class HtmlParser {
                 {
                     for ( HtmlToken tok : tokenBuffer )
                     {
-                        outBuffer.append( tok.str );
-                        HtmlToken.relinquish( tok );
+                        out.write( tok );
+                        arena.release( tok );
                     }
                     tokenBuffer.clear();
                 }
@@ -198,20 +424,21 @@ public class HtmlParser {
             case WHITESPACE:
                 if ( minimizeHtml && ! suppressMinimizeHtml )
                 {
-                    token.str = " ";
+                    token.setString( " " );
                 }
                 break;
             case TEXT:
                 if ( minimizeHtml && ! suppressMinimizeHtml )
                 {
-                    String newTokenStr = token.str.replaceAll("\\s+", " ");
+                    String tokenStr = token.getString();
+                    String newTokenStr = tokenStr.replaceAll("\\s+", " ");
                     if ( newTokenStr.equals( " " ) )
                     {
-                        token.str = "";
+                        token.setString( "" );
                     }
-                    else
+                    else if ( ! newTokenStr.equals( tokenStr ) )
                     {
-                        token.str = newTokenStr;
+                        token.setString( newTokenStr );
                     }
                 }
                 break;
@@ -220,13 +447,13 @@ public class HtmlParser {
                 state = HtmlParser.State.IN_START_TAG;
                 break;
             case TAG_NAME:
-                currentTag = token.str;
+                currentTag = token.getString();
                 if ( currentLevel >= stack.size() )
                 {
-                    stack.add( new ArrayDeque<HtmlToken>() );
+                    stack.add( new StackFrame() );
                 }
-                stackTokens = stack.get( currentLevel );
-                stackToken = ( stackTokens.size() == 0 ) ? null : stackTokens.peek( );
+                frame = stack.get( currentLevel );
+                stackToken = frame.getToken();
 
                 if ( state == HtmlParser.State.IN_START_TAG )
                 {
@@ -275,11 +502,9 @@ public class HtmlParser {
                     // now add the tag to the stack at the correct level
                     if ( currentLevel >= stack.size() )
                     {
-                        stack.add( new ArrayDeque<HtmlToken>() );
+                        stack.add( new StackFrame() );
                     }
-                    stackTokens = stack.get( currentLevel );
-                    token.onStack = true;
-                    stackTokens.push( token );
+                    stack.get( currentLevel ).push( token, arena );
                 }
                 else if ( state == HtmlParser.State.IN_END_TAG )
                 {
@@ -293,12 +518,12 @@ public class HtmlParser {
                             }
                         }
                     }
-                    stackTokens = stack.get( currentLevel );
-                    if ( stackTokens.size() > 0 )
+                    frame = stack.get( currentLevel );
+                    if ( frame.getCount() > 0 )
                     {
                         // Make sure we match the start tag on the stack or there is an implied close
-                        stackToken = stackTokens.peek( );
-                        if ( stackToken.str.equalsIgnoreCase( "body" ) || stackToken.str.equalsIgnoreCase( "html" ) )
+                        stackToken = frame.getToken();
+                        if ( stackToken.getString().equalsIgnoreCase( "body" ) || stackToken.getString().equalsIgnoreCase( "html" ) )
                         {
                             // implied close of previous sibling element
                             if ( bufferingStart.size() > 0 )
@@ -324,15 +549,15 @@ public class HtmlParser {
                 {
                     start = bufferingStart.peek();
                     tokenQueue = tokenBuffer.subList( start, tokenBuffer.size() );
-                    stackTokens = stack.get( currentLevel );
-                    stackToken = ( stackTokens.size() == 0 ) ? null : stackTokens.peek( );
+                    frame = stack.get( currentLevel );
+                    stackToken = frame.getToken();
                     boolean keepBuffering = false;
 
-                    for ( Selector selector : selectors )
+                    for ( Selector selector : matchState.getCandidates( tokenQueue, currentLevel ) )
                     {
                         if ( ! selector.isExpired() )
                         {
-                            if ( selector.check( stackToken, tokenQueue, currentLevel, stackTokens.size() ) )
+                            if ( selector.check( stackToken, tokenQueue, currentLevel, frame.getCount() ) )
                             {
                                 if ( selector.isBuffering() && bufferingStart.size() > 0 )
                                 {
@@ -379,15 +604,15 @@ public class HtmlParser {
                 }
                 else if ( state == HtmlParser.State.IN_END_TAG )
                 {
-                    if ( checkOnStack( currentTag, stack, currentLevel, outBuffer ) )
+                    if ( checkOnStack( currentTag, stack, currentLevel ) )
                     {
                         while ( currentLevel > 0 )
                         {
                             // Make sure we match the start tag on the stack or there is a forced close
-                            stackTokens = stack.get( currentLevel );
-                            if ( stackTokens.size() > 0 )
+                            frame = stack.get( currentLevel );
+                            if ( frame.getCount() > 0 )
                             {
-                                stackToken = stackTokens.peek( );
+                                stackToken = frame.getToken();
                             }
                             else
                             {
@@ -400,7 +625,7 @@ public class HtmlParser {
                                 if ( bufferingStart.size() > 0 )
                                 {
                                     start = bufferingStart.pop();
-                                    if ( stackToken != null && currentTag.equalsIgnoreCase( stackToken.str ) )
+                                    if ( stackToken != null && currentTag.equalsIgnoreCase( stackToken.getString() ) )
                                     {
                                         tokenQueue = tokenBuffer.subList( start, tokenBuffer.size() );
                                     }
@@ -428,7 +653,7 @@ public class HtmlParser {
                             relinquishHtmlTokens( stack, currentLevel );
                             currentLevel--;
 
-                            if ( currentTag.equalsIgnoreCase( stackToken.str ) )
+                            if ( currentTag.equalsIgnoreCase( stackToken.getString() ) )
                             {
                                 break;
                             }
@@ -443,8 +668,8 @@ public class HtmlParser {
                 {
                     if ( bufferingStart.size() > 0 )
                     {
-                        stackTokens = stack.get( currentLevel );
-                        stackToken = ( stackTokens.size() == 0 ) ? null : stackTokens.peek( );
+                        frame = stack.get( currentLevel );
+                        stackToken = frame.getToken();
                         // need to make sure the element is truly self closing
                         if ( stackToken != null && stackToken.getSymbolType() == SymbolTable.Type.VOID_ELEMENT )
                         {
@@ -453,11 +678,11 @@ public class HtmlParser {
                         }
                         start = bufferingStart.pop();
                         tokenQueue = tokenBuffer.subList( start, tokenBuffer.size() );
-                        for ( Selector selector : selectors )
+                        for ( Selector selector : matchState.getCandidates( tokenQueue, currentLevel ) )
                         {
                             if ( ! selector.isExpired() )
                             {
-                                if ( selector.check( stackToken, tokenQueue, currentLevel, stackTokens.size() ) )
+                                if ( selector.check( stackToken, tokenQueue, currentLevel, frame.getCount() ) )
                                 {
                                     if ( selector.isBuffering() )
                                     {
@@ -525,8 +750,8 @@ public class HtmlParser {
                 currentLevel++;
                 if ( cdataSequence == 0 && currentLevel < stack.size() )
                 {
-                    stackTokens = stack.get( currentLevel );
-                    cdataSequence = stackTokens.size();
+                    frame = stack.get( currentLevel );
+                    cdataSequence = frame.getCount();
                 }
                 cdataSequence++;
                 tokenQueue = tokenBuffer.subList( (tokenBuffer.size() - 1), tokenBuffer.size() );
@@ -572,8 +797,8 @@ public class HtmlParser {
                 currentLevel++;
                 if ( commentSequence == 0 && currentLevel < stack.size() )
                 {
-                    stackTokens = stack.get( currentLevel );
-                    commentSequence = stackTokens.size();
+                    frame = stack.get( currentLevel );
+                    commentSequence = frame.getCount();
                 }
                 commentSequence++;
                 tokenQueue = tokenBuffer.subList( (tokenBuffer.size() - 1), tokenBuffer.size() );
@@ -632,91 +857,77 @@ public class HtmlParser {
                 break;
             }
 
-            token = lexer.advance();
+            return true;
         }
 
-        if ( ! passThru )
+        /**
+         * Runs the actions implied by the end of the document and writes the remaining buffered tokens.
+         */
+        void finish() throws IOException
         {
-            // implied at end of file
-            while ( bufferingStart.size() > 0 )
+            List<HtmlToken> tokenQueue;
+
+            if ( ! passThru )
             {
-                tokenQueue = tokenBuffer.subList( bufferingStart.pop(), tokenBuffer.size() );
-                for ( Selector selector : deferredExecute )
+                // implied at end of file
+                while ( bufferingStart.size() > 0 )
                 {
-                    if ( ! selector.isExpired() )
+                    tokenQueue = tokenBuffer.subList( bufferingStart.pop(), tokenBuffer.size() );
+                    for ( Selector selector : deferredExecute )
                     {
-                        selector.executeActions( tokenQueue, null, currentLevel, false );
+                        if ( ! selector.isExpired() )
+                        {
+                            selector.executeActions( tokenQueue, null, currentLevel, false );
+                        }
                     }
                 }
-            }
 
-            if ( tokenBuffer.size() > 0 )
-            {
-                for ( HtmlToken tok : tokenBuffer )
+                if ( tokenBuffer.size() > 0 )
                 {
-                    outBuffer.append( tok.str );
-                    HtmlToken.relinquish( tok );
+                    for ( HtmlToken tok : tokenBuffer )
+                    {
+                        out.write( tok );
+                        arena.release( tok );
+                    }
                 }
             }
-            HtmlToken.relinquish( token );
-        }
-        HtmlToken.replenish( );
-
-        // outBuffer.append("\nCurrent level "+currentLevel+"\n");
-        // outBuffer.append("\nbufferingStart size "+bufferingStart.size()+"\n");
-        // outBuffer.append("\nPool size "+HtmlToken.getPoolSize()+"\n");
-
-        return outBuffer.toString();
-    }
-
-    public void reset()
-    {
-        for ( Selector selector : selectors )
-        {
-            selector.reset();
-        }
-    }
-
-    private void relinquishHtmlTokens( List<Deque<HtmlToken>> stack, int level )
-    {
-        Deque<HtmlToken> stackTokens;
-
-        if ( level < 0 || stack == null || stack.size() == 0 )
-        {
-            return;
         }
 
-        level++;
-        while ( level < stack.size() )
+        private void relinquishHtmlTokens( List<StackFrame> stack, int level )
         {
-            stackTokens = stack.get( level );
-            for ( HtmlToken token : stackTokens )
+            if ( level < 0 || stack == null || stack.size() == 0 )
             {
-                HtmlToken.forceRelinquish( token );
+                return;
             }
-            stackTokens.clear();
+
             level++;
+            while ( level < stack.size() )
+            {
+                stack.get( level ).clear( arena );
+                level++;
+            }
         }
-    }
-
-    private int activeSelectorCount( List<Selector> deferredExecute )
-    {
-        int count = 0;
 
-        for ( Selector selector : selectors )
+        // whether any selector is not expired or still has actions to execute at the end of an element. The
+        // deferred selectors are all expired once no selector is left, so the list just has to be empty.
+        private boolean hasActiveSelectors()
         {
-            if ( deferredExecute.contains( selector ) || ! selector.isExpired() )
-            {
-                count++;
-            }
+            return ( matchState.getUnexpiredCount() > 0 || deferredExecute.size() > 0 );
         }
+    }
 
-        return count;
+    /**
+     * Every document is parsed with its own match state, so there is nothing left to clear between documents.
+     *
+     * @deprecated no longer needed
+     */
+    @Deprecated
+    public void reset()
+    {
     }
 
-    private boolean checkOnStack( String tag, List<Deque<HtmlToken>> stack, int level, StringBuffer sb )
+    private boolean checkOnStack( String tag, List<StackFrame> stack, int level )
     {
-        Deque<HtmlToken> stackTokens;
         HtmlToken token;
         boolean ret = false;
 
@@ -727,11 +938,10 @@ public class HtmlParser {
 
         while ( level >= 0 )
         {
-            stackTokens = stack.get( level );
-            token = ( stackTokens.size() == 0 ) ? null : stackTokens.peek( );
+            token = stack.get( level ).getToken();
             if ( token != null )
             {
-                if ( tag.equalsIgnoreCase( token.str ) )
+                if ( tag.equalsIgnoreCase( token.getString() ) )
                 {
                     ret = true;
                     break;
@@ -743,10 +953,9 @@ public class HtmlParser {
         return ret;
     }
 
-    private void printStack( List<Deque<HtmlToken>> stack, int level, StringBuffer sb )
+    private void printStack( List<StackFrame> stack, int level, StringBuffer sb )
     {
-        Deque<HtmlToken> stackTokens;
-        HtmlToken token;
+        StackFrame frame;
         boolean ret = false;
 
         sb.append( "\n[[STACK]] size: " + stack.size() + " currentLevel: " + level );
@@ -757,16 +966,10 @@ public class HtmlParser {
 
         for ( int i = 1 ; i < stack.size(); i++ )
         {
-            stackTokens = stack.get( i );
-            if ( stackTokens.size() > 0 )
+            frame = stack.get( i );
+            if ( frame.getToken() != null )
             {
-                Iterator<HtmlToken> it = stackTokens.iterator();
-                sb.append( "\n"+i+" " );
-                while ( it.hasNext() )
-                {
-                    token = it.next();
-                    sb.append( "["+token.str+"]" );
-                }
+                sb.append( "\n"+i+" ["+frame.getToken().getString()+"] of "+frame.getCount() );
             }
             else
             {
@@ -797,7 +1000,7 @@ public class HtmlParser {
             token = queue.get( i );
             if ( token != null )
             {
-                sb.append( token.str );
+                sb.append( token.getString() );
             }
         }
     }
@@ -0,0 +1,250 @@
+package org.jsoupstream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Flow.Processor that transforms one HTML document published as ByteBuffer chunks. Input is requested one
+ * chunk at a time and only while the subscriber has outstanding demand, so a slow subscriber stops the parser
+ * from pulling in (and buffering) more of the document.
+ *
+ * Like HtmlPushParser, any number of documents can be processed through the same HtmlParser at the same time.
+ * If the parser or the onNext() of the subscriber throws, the input is cancelled and the subscriber gets
+ * onError().
+ */
+public class HtmlProcessor implements Flow.Processor<ByteBuffer, ByteBuffer>
+{
+    private final HtmlPushParser parser;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> input = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger(); // signals not yet handled by drain()
+
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+    private volatile boolean upstreamDone = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable error;
+
+    // only used by the thread running drain()
+    private boolean requested = false;
+    private ByteBuffer last;
+    private boolean done = false;
+
+    public HtmlProcessor( HtmlParser parser )
+    {
+        this.parser = new HtmlPushParser( parser );
+    }
+
+    public void subscribe( Flow.Subscriber<? super ByteBuffer> subscriber )
+    {
+        synchronized ( this )
+        {
+            if ( downstream == null )
+            {
+                downstream = subscriber;
+                subscriber.onSubscribe( new Subscription() );
+                drain();
+                return;
+            }
+        }
+
+        subscriber.onSubscribe( new Flow.Subscription()
+        {
+            public void request( long n ) {}
+            public void cancel() {}
+        } );
+        subscriber.onError( new IllegalStateException( "HtmlProcessor supports a single subscriber" ) );
+    }
+
+    public void onSubscribe( Flow.Subscription subscription )
+    {
+        if ( upstream != null )
+        {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        drain();
+    }
+
+    public void onNext( ByteBuffer chunk )
+    {
+        input.add( chunk );
+        drain();
+    }
+
+    public void onError( Throwable throwable )
+    {
+        error = throwable;
+        drain();
+    }
+
+    public void onComplete()
+    {
+        upstreamDone = true;
+        drain();
+    }
+
+    private class Subscription implements Flow.Subscription
+    {
+        public void request( long n )
+        {
+            if ( n <= 0 )
+            {
+                cancelUpstream();
+                error = new IllegalArgumentException( "non-positive request: " + n );
+            }
+            else
+            {
+                demand.getAndAccumulate( n, (current, add) -> ( current + add < 0 ) ? Long.MAX_VALUE : current + add );
+            }
+            drain();
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+            cancelUpstream();
+        }
+    }
+
+    private void cancelUpstream()
+    {
+        Flow.Subscription subscription = upstream;
+        if ( subscription != null )
+        {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * Handles everything that has happened since the last call. Only one thread runs the loop at a time, a
+     * signal arriving meanwhile (including one sent from within the loop) makes it go round once more rather
+     * than recursing.
+     */
+    private void drain()
+    {
+        if ( pending.getAndIncrement() != 0 )
+        {
+            return;
+        }
+
+        boolean drained = false;
+        try
+        {
+            do
+            {
+                if ( downstream != null && upstream != null )
+                {
+                    step();
+                }
+            }
+            while ( pending.decrementAndGet() != 0 );
+            drained = true;
+        }
+        finally
+        {
+            if ( ! drained )
+            {
+                // onError() or onComplete() of the subscriber threw, after done was set: the signals counted
+                // meanwhile are dropped so later ones do not wait for this loop
+                pending.set( 0 );
+            }
+        }
+    }
+
+    private void step()
+    {
+        while ( ! done )
+        {
+            if ( cancelled )
+            {
+                done = true;
+                input.clear();
+                return;
+            }
+
+            if ( error != null )
+            {
+                done = true;
+                input.clear();
+                downstream.onError( error );
+                return;
+            }
+
+            ByteBuffer chunk = input.poll();
+            if ( chunk != null )
+            {
+                requested = false;
+                try
+                {
+                    ByteBuffer out = parser.feed( chunk );
+                    if ( out.hasRemaining() )
+                    {
+                        // a chunk is only requested when there is demand for its output
+                        demand.decrementAndGet();
+                        downstream.onNext( out );
+                    }
+                }
+                catch (Throwable t)
+                {
+                    // malformed markup can make the parser throw, and the subscriber can throw from onNext()
+                    cancelUpstream();
+                    error = t;
+                }
+                continue;
+            }
+
+            if ( upstreamDone )
+            {
+                if ( last == null )
+                {
+                    try
+                    {
+                        last = parser.finish();
+                    }
+                    catch (Throwable t)
+                    {
+                        cancelUpstream();
+                        error = t;
+                        continue;
+                    }
+                }
+
+                if ( last.hasRemaining() )
+                {
+                    if ( demand.get() == 0 )
+                    {
+                        // hold the rest of the document until it is asked for
+                        return;
+                    }
+                    demand.decrementAndGet();
+                    try
+                    {
+                        downstream.onNext( last );
+                    }
+                    catch (Throwable t)
+                    {
+                        cancelUpstream();
+                        error = t;
+                        continue;
+                    }
+                }
+                done = true;
+                downstream.onComplete();
+                return;
+            }
+
+            if ( requested || demand.get() == 0 )
+            {
+                return;
+            }
+            requested = true;
+            upstream.request( 1 );
+        }
+    }
+}
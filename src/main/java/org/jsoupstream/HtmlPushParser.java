@@ -0,0 +1,135 @@
+package org.jsoupstream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses one document that is pushed to it in chunks as they arrive, for example from a non-blocking channel.
+ * Each call to feed() returns the output that could be produced so far and never blocks waiting for input.
+ * Tokens split across chunks (and multi-byte characters within them) are held back until the rest arrives.
+ *
+ * <pre>
+ *   HtmlPushParser push = new HtmlPushParser( parser );
+ *   while ( channel.read( in ) &gt;= 0 ) { in.flip(); send( push.feed( in ) ); in.clear(); }
+ *   send( push.finish() );
+ * </pre>
+ *
+ * Each HtmlPushParser keeps the match state of its own document, so any number of documents can be pushed
+ * through the same HtmlParser at the same time.
+ */
+public class HtmlPushParser
+{
+    private final HtmlLexer lexer = new HtmlLexer();
+    private final Output output = new Output();
+    private final HtmlWriter out;
+    private final HtmlParser.Document document;
+    private boolean finished = false;
+
+    public HtmlPushParser( HtmlParser parser )
+    {
+        this.out = HtmlWriter.of( output, parser.getCharset() );
+        this.document = parser.newDocument( out, lexer.getArena() );
+        lexer.setCharset( parser.getCharset() );
+    }
+
+    /**
+     * Parses the remaining bytes of the chunk. The chunk is consumed completely and can be reused once this
+     * returns.
+     *
+     * @return the output produced, possibly empty
+     */
+    public ByteBuffer feed( ByteBuffer chunk ) throws IOException
+    {
+        if ( finished )
+        {
+            throw new IllegalStateException( "feed() called after finish()" );
+        }
+
+        if ( document.isPassThru() )
+        {
+            // all selectors have been satisfied, the input goes straight out
+            output.write( chunk );
+        }
+        else
+        {
+            lexer.feed( chunk );
+            process();
+        }
+
+        out.flush();
+        return output.take();
+    }
+
+    /**
+     * Ends the document.
+     *
+     * @return the rest of the output
+     */
+    public ByteBuffer finish() throws IOException
+    {
+        if ( ! finished )
+        {
+            finished = true;
+            if ( ! document.isPassThru() )
+            {
+                lexer.finish();
+                process();
+            }
+            document.finish();
+            out.flush();
+        }
+
+        return output.take();
+    }
+
+    private void process() throws IOException
+    {
+        HtmlToken token;
+
+        while ( (token = lexer.advance()) != null )
+        {
+            if ( token.type == HtmlToken.Type.EOF )
+            {
+                break;
+            }
+
+            if ( ! document.process( token ) )
+            {
+                // write what was fed beyond the last token
+                out.transferFrom( lexer );
+                break;
+            }
+        }
+    }
+
+    /**
+     * Collects the output of one call, handed out and emptied by take().
+     */
+    private static class Output extends ByteArrayOutputStream
+    {
+        void write( ByteBuffer chunk )
+        {
+            int num = chunk.remaining();
+
+            if ( chunk.hasArray() )
+            {
+                write( chunk.array(), (chunk.arrayOffset() + chunk.position()), num );
+                chunk.position( chunk.limit() );
+            }
+            else
+            {
+                byte[] bytes = new byte[num];
+                chunk.get( bytes );
+                write( bytes, 0, num );
+            }
+        }
+
+        ByteBuffer take()
+        {
+            ByteBuffer taken = ByteBuffer.wrap( toByteArray() );
+            reset();
+            return taken;
+        }
+    }
+}
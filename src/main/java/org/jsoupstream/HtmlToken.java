@@ -1,6 +1,5 @@
 package org.jsoupstream;
 
-import java.util.ArrayDeque;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -9,9 +8,6 @@ import java.nio.charset.StandardCharsets;
  */
 public class HtmlToken
 {
-    private static final boolean USE_POOL = true;
-    private static final int POOL_BLOCK = 20;
-
     // The HtmlToken type (simplified for streaming parser)
     public static enum Type
     {
@@ -40,111 +36,139 @@ public class HtmlToken
 
     public Type type;
     public SymbolTable.Symbol symbol;
-    public String str;
     public boolean onStack = false;
+    boolean relinquished = false; // given up while still on the stack, recycled when it leaves the stack
+
+    /**
+     * The value of the token, null until getString() decodes it. The tokens handed to an action of a class
+     * other than Functions are decoded first, and a value assigned here is written out like one passed to
+     * setString().
+     *
+     * @deprecated use getString() and setString()
+     */
+    @Deprecated
+    public String str;
 
-    // create a pool so we can reuse HtmlTokens
-    private static ArrayDeque<HtmlToken> pool = new ArrayDeque<HtmlToken>();
-    private static ArrayDeque<HtmlToken> unrelinquishedPool = new ArrayDeque<HtmlToken>();
-    private static int totalTokens = 0;
-    private static Charset charset = StandardCharsets.UTF_8;
-
-    private HtmlToken()
-    {
-    }
-
-    public static int getPoolSize()
-    {
-        return pool.size();
-    }
+    // The raw bytes of the token are kept and only decoded when the string value is asked for.
+    // Most tokens are written back out without ever being inspected.
+    private byte[] bytes;
+    private int length = 0;
+    private boolean raw = true; // false once the value has been replaced
+    private Charset tokenCharset;
+    private String value; // str as last decoded or set, a different str was assigned to the field directly
 
-    public static void setCharset(Charset charset)
+    HtmlToken()
     {
-        HtmlToken.charset = charset;
     }
 
+    /**
+     * Creates a token outside of any TokenArena, for example to insert into the document from an action.
+     * The bytes are taken to be UTF-8.
+     */
     public static HtmlToken getToken(byte[] s, Type t)
     {
-        int len = s.length;
-        return getToken( s, 0, len, t, charset );
+        return getToken( s, 0, s.length, t, StandardCharsets.UTF_8 );
     }
 
+    /**
+     * Creates a token outside of any TokenArena from len bytes of s in the charset.
+     *
+     * @deprecated use getToken( byte[], Type ), the tokens of a document are allocated by its lexer
+     */
+    @Deprecated
     public static HtmlToken getToken(byte[] s, int offset, int len, Type t, Charset charset)
     {
-        HtmlToken token;
+        HtmlToken token = new HtmlToken();
+        token.set( s, offset, len, t, charset );
+        return token;
+    }
 
-        if ( USE_POOL )
+    // (Re)initializes a new or recycled token
+    void set(byte[] s, int offset, int len, Type t, Charset charset)
+    {
+        if ( s == null )
         {
-            if ( pool.size() == 0 )
-            {
-                // add POOL_BLOCK more tokens in the pool
-                for (int i = 0; i < POOL_BLOCK; i++)
-                {
-                    pool.push(new HtmlToken());
-                    totalTokens++;
-                }
-            }
-    
-            token = pool.pop();
+            length = 0;
+            str = value = "";
         }
         else
         {
-            token = new HtmlToken();
+            if ( bytes == null || bytes.length < len )
+            {
+                bytes = new byte[len];
+            }
+            System.arraycopy( s, offset, bytes, 0, len );
+            length = len;
+            str = value = null;
         }
-
-        token.str = (s == null) ? "" : new String( s, offset, len, charset );
-        token.type = t;
+        raw = true;
+        tokenCharset = charset;
+        type = t;
         if (t == Type.TAG_NAME)
         {
-            SymbolTable.Symbol sym = SymbolTable.lookup( token.str );
-            token.symbol = sym;
+            symbol = SymbolTable.lookup( getString() );
         }
         else
         {
-            token.symbol = null;
+            symbol = null;
         }
 
-        token.onStack = false;
-        return token;
+        onStack = false;
+        relinquished = false;
     }
 
-    public static void relinquish(HtmlToken token)
+    // Drops a byte array too large to be worth keeping in a recycled token
+    void trim(int maxBytes)
     {
-        if ( USE_POOL )
+        if ( bytes != null && bytes.length > maxBytes )
         {
-            if ( ! token.onStack )
-            {
-                pool.push(token);
-            }
-            else
-            {
-                unrelinquishedPool.push( token );
-            }
+            bytes = null;
         }
     }
 
-    public static void forceRelinquish(HtmlToken token)
+    /**
+     * Returns the token as a String, decoding the raw bytes the first time it is called.
+     */
+    public String getString()
     {
-        if ( USE_POOL )
+        if ( str != value )
         {
-            if ( unrelinquishedPool.remove( token ) )
-            {
-                pool.push( token );
-            }
+            setString( str );
+        }
+        if ( str == null )
+        {
+            str = value = ( length == 0 ) ? "" : new String( bytes, 0, length, tokenCharset );
         }
+        return str;
     }
 
-    public static void replenish()
+    /**
+     * Replaces the value of the token.
+     */
+    public void setString(String str)
     {
-        if ( USE_POOL )
-        {
-            HtmlToken token;
-            while ( unrelinquishedPool.size() > 0 )
-            {
-                token = unrelinquishedPool.pop();
-                pool.push( token );
-            }
-        }
+        this.str = this.value = str;
+        this.length = 0;
+        this.raw = false;
+    }
+
+    /**
+     * Returns true if the token still holds the exact bytes it was created from, in the given charset.
+     */
+    boolean isRaw(Charset charset)
+    {
+        return raw && str == value && charset.equals( tokenCharset );
+    }
+
+    // The bytes the token was created from. Only valid while isRaw() is true.
+    byte[] getRawBytes()
+    {
+        return bytes;
+    }
+
+    int getRawLength()
+    {
+        return length;
     }
 
     public SymbolTable.Type getSymbolType()
@@ -161,6 +185,6 @@ public class HtmlToken
 
     public String toString()
     {
-        return str;
+        return getString();
     }
 }
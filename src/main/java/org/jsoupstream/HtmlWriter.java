@@ -0,0 +1,204 @@
+package org.jsoupstream;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Destination for the output of the HtmlParser. Tokens are written as soon as they leave the parser's
+ * token buffer, so no copy of the whole document is ever held in memory.
+ */
+abstract class HtmlWriter
+{
+    private static final int BUFSIZ = 8192;
+
+    public abstract void write( String str ) throws IOException;
+
+    public abstract void flush() throws IOException;
+
+    /**
+     * Writes whatever input the lexer has not consumed yet. Used once no selector can match anymore.
+     */
+    public abstract void transferFrom( HtmlLexer lexer ) throws IOException;
+
+    public void write( HtmlToken token ) throws IOException
+    {
+        write( token.getString() );
+    }
+
+    public static HtmlWriter of( OutputStream out, Charset charset )
+    {
+        return new StreamWriter( out, null, charset );
+    }
+
+    public static HtmlWriter of( WritableByteChannel out, Charset charset )
+    {
+        return new StreamWriter( Channels.newOutputStream( out ), out, charset );
+    }
+
+    public static HtmlWriter of( Writer out, Charset charset )
+    {
+        return new CharWriter( out, charset );
+    }
+
+    /**
+     * Encodes the output with the parser's charset into a small reusable buffer which is handed to the
+     * OutputStream whenever it fills up.
+     */
+    private static class StreamWriter extends HtmlWriter
+    {
+        private final OutputStream out;
+        private final WritableByteChannel channel; // null unless writing to a channel
+        private final Charset charset;
+        private final byte[] buffer = new byte[BUFSIZ];
+        private int pos = 0;
+
+        StreamWriter( OutputStream out, WritableByteChannel channel, Charset charset )
+        {
+            this.out = out;
+            this.channel = channel;
+            this.charset = charset;
+        }
+
+        public void write( String str ) throws IOException
+        {
+            write( str.getBytes( charset ) );
+        }
+
+        public void write( HtmlToken token ) throws IOException
+        {
+            // untouched tokens go out as the exact bytes they were read from, only changed ones are encoded
+            if ( token.isRaw( charset ) )
+            {
+                write( token.getRawBytes(), token.getRawLength() );
+            }
+            else
+            {
+                write( token.getString() );
+            }
+        }
+
+        private void write( byte[] bytes ) throws IOException
+        {
+            write( bytes, bytes.length );
+        }
+
+        private void write( byte[] bytes, int len ) throws IOException
+        {
+            if ( len > (buffer.length - pos) )
+            {
+                drain();
+                if ( len > buffer.length )
+                {
+                    out.write( bytes, 0, len );
+                    return;
+                }
+            }
+            System.arraycopy( bytes, 0, buffer, pos, len );
+            pos += len;
+        }
+
+        private void drain() throws IOException
+        {
+            if ( pos > 0 )
+            {
+                out.write( buffer, 0, pos );
+                pos = 0;
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            drain();
+            out.flush();
+        }
+
+        public void transferFrom( HtmlLexer lexer ) throws IOException
+        {
+            // the input is already in the output charset so the bytes are copied without decoding
+            drain();
+            if ( channel != null )
+            {
+                lexer.transferTo( channel );
+            }
+            else
+            {
+                lexer.transferTo( out );
+            }
+        }
+    }
+
+    private static class CharWriter extends HtmlWriter
+    {
+        private final Writer out;
+        private final Charset charset;
+
+        CharWriter( Writer out, Charset charset )
+        {
+            this.out = out;
+            this.charset = charset;
+        }
+
+        public void write( String str ) throws IOException
+        {
+            out.write( str );
+        }
+
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        public void transferFrom( HtmlLexer lexer ) throws IOException
+        {
+            // the decoder carries multi-byte sequences split across reads over to the next read
+            CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput( CodingErrorAction.REPLACE )
+                .onUnmappableCharacter( CodingErrorAction.REPLACE );
+            ByteBuffer in = ByteBuffer.allocate( BUFSIZ );
+            CharBuffer chars = CharBuffer.allocate( BUFSIZ );
+            int num = 0;
+
+            while ( num >= 0 )
+            {
+                num = lexer.read( in.array(), in.position(), in.remaining() );
+                if ( num > 0 )
+                {
+                    in.position( in.position() + num );
+                }
+                in.flip();
+                decode( decoder, in, chars, ( num < 0 ) );
+                in.compact();
+            }
+
+            while ( decoder.flush( chars ).isOverflow() )
+            {
+                drain( chars );
+            }
+            drain( chars );
+        }
+
+        private void decode( CharsetDecoder decoder, ByteBuffer in, CharBuffer chars, boolean endOfInput ) throws IOException
+        {
+            while ( decoder.decode( in, chars, endOfInput ).isOverflow() )
+            {
+                drain( chars );
+            }
+            drain( chars );
+        }
+
+        private void drain( CharBuffer chars ) throws IOException
+        {
+            chars.flip();
+            out.write( chars.array(), 0, chars.limit() );
+            chars.clear();
+        }
+    }
+}
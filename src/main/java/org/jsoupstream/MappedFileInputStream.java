@@ -0,0 +1,106 @@
+package org.jsoupstream;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads a file through memory mapped windows. A MappedByteBuffer is limited to 2 GB, so larger files are
+ * mapped one window at a time as the reader moves through them.
+ */
+class MappedFileInputStream extends ByteBufferInputStream
+{
+    private static final long WINDOW = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private long windowStart; // file position of the start of the current window
+    private long mark = -1;
+
+    MappedFileInputStream( FileChannel channel ) throws IOException
+    {
+        super( ByteBuffer.allocate( 0 ) );
+        this.channel = channel;
+        this.size = channel.size();
+        this.windowStart = channel.position();
+    }
+
+    private long position()
+    {
+        return windowStart + buffer.position();
+    }
+
+    private boolean map( long position ) throws IOException
+    {
+        if ( position >= size )
+        {
+            return false;
+        }
+        buffer = channel.map( FileChannel.MapMode.READ_ONLY, position, Math.min( WINDOW, size - position ) );
+        windowStart = position;
+        return true;
+    }
+
+    protected boolean nextBuffer() throws IOException
+    {
+        return map( position() );
+    }
+
+    public int available()
+    {
+        return (int)Math.min( Integer.MAX_VALUE, size - position() );
+    }
+
+    public void mark( int readLimit )
+    {
+        mark = position();
+    }
+
+    public void reset() throws IOException
+    {
+        if ( mark < 0 )
+        {
+            throw new IOException( "Resetting to invalid mark" );
+        }
+
+        if ( mark >= windowStart && mark <= ( windowStart + buffer.limit() ) )
+        {
+            buffer.position( (int)( mark - windowStart ) );
+        }
+        else
+        {
+            // the mark is in an earlier window
+            map( mark );
+        }
+    }
+
+    public long transferTo( OutputStream out ) throws IOException
+    {
+        return transferTo( Channels.newChannel( out ) );
+    }
+
+    public long transferTo( WritableByteChannel out ) throws IOException
+    {
+        // let the file channel move the bytes, which avoids copying them through the heap when the target
+        // is a file or socket
+        long position = position();
+        long start = position;
+
+        while ( position < size )
+        {
+            position += channel.transferTo( position, size - position, out );
+        }
+        buffer = ByteBuffer.allocate( 0 );
+        windowStart = size;
+
+        return position - start;
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,26 @@
+package org.jsoupstream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Supplies the stream each document of a batch is written to. open() is called by several worker threads at
+ * once.
+ */
+public interface OutputSink
+{
+    /**
+     * Returns the stream for the transformed document. The batch closes it once the document has been written.
+     */
+    OutputStream open( Path document ) throws IOException;
+
+    /**
+     * Writes every document to a file of the same name in the directory.
+     */
+    static OutputSink directory( Path directory )
+    {
+        return document -> Files.newOutputStream( directory.resolve( document.getFileName() ) );
+    }
+}
@@ -0,0 +1,254 @@
+package org.jsoupstream;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Lexes a document held in memory in chunks on several threads and hands out the tokens in order, the same
+ * tokens a single HtmlLexer returns.
+ *
+ * Each chunk starts at a '<' and is lexed on the guess that the '<' is in text. The chunks are then stitched
+ * together in order: the lexer that is known to be right (starting with the one at the beginning of the
+ * document) carries on into the next chunk until it reaches a token the chunk lexed in the same state, from
+ * there the chunk's tokens are used. When the guess was right that is the first token of the chunk, when the
+ * '<' was in a comment, script or attribute only the tokens up to the point the two agree are lexed again.
+ *
+ * Only a few chunks ahead of the one being handed out are lexed at a time, which bounds the tokens held.
+ */
+class ParallelLexer
+{
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private final byte[] input;
+    private final Executor executor;
+    private final Charset charset;
+    private final TokenArena arena = new TokenArena(); // where the parser gives the tokens back
+    private final int[] starts;
+    private final int count;
+    private final int lookahead;
+    private final CompletableFuture<?>[] chunks;
+    private int submitted = 0;
+
+    private HtmlLexer lexer; // the lexer known to be in the right state
+    private Chunk current; // the chunk whose tokens are handed out, lexer carries on from its end
+    private int next = 0; // the next token of current
+    private int chunk = 0; // the first chunk not yet reached
+
+    ParallelLexer( byte[] input, Executor executor, Charset charset, int chunkSize, int lookahead )
+    {
+        this.input = input;
+        this.executor = executor;
+        this.charset = charset;
+        this.lookahead = lookahead;
+
+        // a chunk starts at the first '<' of its part of the input, parts without one are left to the previous
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+        offsets.add( 0 );
+        for ( long split = chunkSize; split < input.length; split += chunkSize )
+        {
+            int end = (int)Math.min( (split + chunkSize), input.length );
+            for ( int i = (int)split; i < end; i++ )
+            {
+                if ( input[i] == '<' )
+                {
+                    offsets.add( i );
+                    break;
+                }
+            }
+        }
+        this.count = offsets.size();
+        this.starts = new int[count + 1];
+        for ( int i = 0; i < count; i++ )
+        {
+            starts[i] = offsets.get( i );
+        }
+        starts[count] = input.length;
+        this.chunks = new CompletableFuture<?>[count];
+
+        this.lexer = new HtmlLexer( input, 0, arena );
+        lexer.setCharset( charset );
+        submit();
+    }
+
+    TokenArena getArena()
+    {
+        return arena;
+    }
+
+    /**
+     * Returns the next token, EOF at the end of the input.
+     */
+    HtmlToken advance()
+    {
+        while ( true )
+        {
+            if ( current != null )
+            {
+                if ( next < current.size() )
+                {
+                    return current.tokens.get( next++ );
+                }
+
+                // the chunk's lexer stopped where the next chunk starts
+                lexer = current.lexer;
+                lexer.setBufferLength( Math.max( current.bufferLength, lexer.getBufferLength() ) );
+                current = null;
+            }
+
+            int pos = lexer.position();
+
+            // chunks the lexer has gone past are of no use
+            while ( chunk < count && starts[chunk + 1] <= pos )
+            {
+                chunks[chunk].cancel( false );
+                chunks[chunk++] = null;
+                submit();
+            }
+
+            if ( chunk < count && starts[chunk] <= pos )
+            {
+                Chunk c = get( chunk );
+                int j = c.indexOf( pos );
+                if ( j >= 0 && c.agrees( j, lexer ) )
+                {
+                    chunks[chunk++] = null;
+                    submit();
+                    current = c;
+                    current.bufferLength = lexer.getBufferLength();
+                    next = j;
+                    continue;
+                }
+            }
+
+            return lexer.advance();
+        }
+    }
+
+    /**
+     * Returns a lexer over the input from the start of the next token, for copying the rest of the document.
+     */
+    HtmlLexer rest()
+    {
+        int pos;
+
+        if ( current == null )
+        {
+            pos = lexer.position();
+        }
+        else if ( next < current.size() )
+        {
+            pos = current.positions[next];
+        }
+        else
+        {
+            pos = current.lexer.position();
+        }
+
+        return new HtmlLexer( input, pos, arena );
+    }
+
+    /**
+     * Stops lexing the chunks not yet started.
+     */
+    void close()
+    {
+        for ( int i = chunk; i < count; i++ )
+        {
+            if ( chunks[i] != null )
+            {
+                chunks[i].cancel( false );
+                chunks[i] = null;
+            }
+        }
+        submitted = count;
+    }
+
+    private Chunk get( int i )
+    {
+        return (Chunk)chunks[i].join();
+    }
+
+    // keeps lookahead chunks past the one being reached lexed or lexing
+    private void submit()
+    {
+        while ( submitted < count && submitted <= (chunk + lookahead) )
+        {
+            final int i = submitted++;
+            final TokenArena chunkArena = arena.drain();
+            chunks[i] = CompletableFuture.supplyAsync( () -> new Chunk( starts[i], starts[i + 1], chunkArena ), executor );
+        }
+    }
+
+    /**
+     * The tokens lexed from one chunk, with the position and state the lexer was in before each.
+     */
+    private class Chunk
+    {
+        private final ArrayList<HtmlToken> tokens = new ArrayList<HtmlToken>();
+        private int[] positions = new int[256];
+        private int[] keys = new int[256];
+        private int[] bufferLengths = new int[256];
+        private int lastCapped = -1; // the last token cut at bufferLength
+        private final HtmlLexer lexer;
+        private int bufferLength; // of the right lexer when the chunk was reached
+
+        Chunk( int start, int end, TokenArena arena )
+        {
+            lexer = new HtmlLexer( input, start, arena );
+            lexer.setCharset( charset );
+
+            while ( lexer.position() < end )
+            {
+                int n = tokens.size();
+                if ( n == positions.length )
+                {
+                    positions = Arrays.copyOf( positions, (n * 2) );
+                    keys = Arrays.copyOf( keys, (n * 2) );
+                    bufferLengths = Arrays.copyOf( bufferLengths, (n * 2) );
+                }
+                positions[n] = lexer.position();
+                keys[n] = lexer.getStateKey();
+                bufferLengths[n] = lexer.getBufferLength();
+
+                HtmlToken token = lexer.advance();
+                if ( token.type == HtmlToken.Type.EOF )
+                {
+                    break;
+                }
+                if ( lexer.isCapped() )
+                {
+                    lastCapped = n;
+                }
+                tokens.add( token );
+            }
+        }
+
+        int size()
+        {
+            return tokens.size();
+        }
+
+        // the token starting at pos, -1 if no token does
+        int indexOf( int pos )
+        {
+            int j = Arrays.binarySearch( positions, 0, tokens.size(), pos );
+            return ( j < 0 ) ? -1 : j;
+        }
+
+        /**
+         * Whether the tokens from j on are the ones the lexer would return. bufferLength only grows, by the same
+         * steps in both, so a smaller one here only matters for tokens that were cut short by it.
+         */
+        boolean agrees( int j, HtmlLexer right )
+        {
+            if ( keys[j] != right.getStateKey() || bufferLengths[j] > right.getBufferLength() )
+            {
+                return false;
+            }
+            return ( bufferLengths[j] == right.getBufferLength() || lastCapped < j );
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.jsoupstream;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs an HtmlLexer on another thread and hands its tokens to the parser's thread through an SpscRing, so
+ * lexing the next tokens overlaps with matching the last ones.
+ *
+ * The tokens the parser gives back to its arena are passed back to the lexer's arena in batches, which keeps
+ * the tokens in use bounded by the ring as they are when both run on one thread.
+ */
+class PipelinedLexer
+{
+    static final int RING_SIZE = 1024;
+    private static final int RETURN_BATCH = 256; // tokens collected before they are passed back
+
+    private final HtmlLexer lexer;
+    private final SpscRing<HtmlToken> ring;
+    private final TokenArena arena = new TokenArena(); // where the parser gives the tokens back
+    private final AtomicReference<TokenArena> returned = new AtomicReference<TokenArena>();
+    private final CountDownLatch stopped = new CountDownLatch( 1 );
+    private volatile boolean stop = false;
+    private volatile Throwable error;
+    private HtmlToken leftover; // lexed but not put as the ring was closed, read after stopped
+
+    PipelinedLexer( HtmlLexer lexer, Executor executor, int ringSize )
+    {
+        this.lexer = lexer;
+        this.ring = new SpscRing<HtmlToken>( ringSize );
+        executor.execute( this::produce );
+    }
+
+    TokenArena getArena()
+    {
+        return arena;
+    }
+
+    // the lexer's thread
+    private void produce()
+    {
+        TokenArena lexerArena = lexer.getArena();
+
+        try
+        {
+            while ( ! stop )
+            {
+                TokenArena back = returned.getAndSet( null );
+                if ( back != null )
+                {
+                    lexerArena.absorb( back );
+                }
+
+                HtmlToken token = lexer.advance();
+                if ( ! ring.put( token ) )
+                {
+                    leftover = token;
+                    break;
+                }
+                if ( token.type == HtmlToken.Type.EOF )
+                {
+                    break;
+                }
+            }
+        }
+        catch ( Throwable t )
+        {
+            error = t;
+            ring.close();
+        }
+        finally
+        {
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Returns the next token, EOF at the end of the input.
+     */
+    HtmlToken advance() throws IOException
+    {
+        if ( arena.size() >= RETURN_BATCH && returned.get() == null )
+        {
+            returned.set( arena.drain() );
+        }
+
+        HtmlToken token = ring.take();
+        if ( token == null )
+        {
+            throw new IOException( "lexer failed", error );
+        }
+        return token;
+    }
+
+    /**
+     * Stops the lexer and writes everything after the token last returned: the tokens already in the ring,
+     * then the input the lexer has not read yet.
+     */
+    void transferRest( HtmlWriter out ) throws IOException
+    {
+        HtmlToken token;
+
+        stop();
+        while ( (token = ring.take()) != null )
+        {
+            if ( token.type == HtmlToken.Type.EOF )
+            {
+                return;
+            }
+            out.write( token );
+            arena.release( token );
+        }
+        if ( leftover != null )
+        {
+            if ( leftover.type == HtmlToken.Type.EOF )
+            {
+                return;
+            }
+            out.write( leftover );
+            leftover = null;
+        }
+        if ( error != null )
+        {
+            throw new IOException( "lexer failed", error );
+        }
+        out.transferFrom( lexer );
+    }
+
+    /**
+     * Stops the lexer and waits for its thread to let go of it.
+     */
+    void close() throws IOException
+    {
+        stop();
+    }
+
+    private void stop() throws IOException
+    {
+        stop = true;
+        ring.close();
+        try
+        {
+            stopped.await();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "interrupted waiting for the lexer", e );
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.jsoupstream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads an InputStream ahead on another thread, so a slow source (a pipe, a decompressor) is read while the
+ * lexer works on what came before instead of in turns with it.
+ *
+ * <pre>
+ *   HtmlLexer lexer = new HtmlLexer( new PrefetchInputStream( new GZIPInputStream( in ), 4 ) );
+ * </pre>
+ *
+ * depth + 1 buffers go round between the threads in a pair of SpscRings: up to depth of them filled and
+ * waiting, one being read. Closing the stream closes the source and ends the reading thread.
+ */
+public class PrefetchInputStream extends ByteBufferInputStream
+{
+    public static final int DEFAULT_DEPTH = 2;
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final ByteBuffer END = ByteBuffer.allocate( 0 ); // passed after the last buffer
+
+    private final InputStream in;
+    private final SpscRing<ByteBuffer> full;
+    private final SpscRing<ByteBuffer> empty;
+    private volatile IOException error;
+    private boolean ended = false;
+
+    public PrefetchInputStream( InputStream in )
+    {
+        this( in, DEFAULT_DEPTH );
+    }
+
+    public PrefetchInputStream( InputStream in, int depth )
+    {
+        this( in, depth, DEFAULT_BUFFER_SIZE, HtmlParser.PIPELINE_THREADS );
+    }
+
+    /**
+     * @param executor runs the reading thread, it must start it right away
+     */
+    public PrefetchInputStream( InputStream in, int depth, int bufferSize, Executor executor )
+    {
+        super( ByteBuffer.allocate( bufferSize ).flip() );
+        if ( depth < 1 )
+        {
+            throw new IllegalArgumentException( "depth must be at least 1" );
+        }
+
+        this.in = in;
+        this.full = new SpscRing<ByteBuffer>( depth + 1 );
+        this.empty = new SpscRing<ByteBuffer>( depth + 1 );
+        for ( int i = 0; i < depth; i++ )
+        {
+            empty.put( ByteBuffer.allocate( bufferSize ) );
+        }
+        executor.execute( this::prefetch );
+    }
+
+    // the reading thread
+    private void prefetch()
+    {
+        ByteBuffer b;
+
+        try
+        {
+            while ( (b = empty.take()) != null )
+            {
+                if ( ! read( b ) )
+                {
+                    break;
+                }
+                if ( ! full.put( b ) )
+                {
+                    return;
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            error = e;
+        }
+        catch ( RuntimeException e )
+        {
+            error = new IOException( e );
+        }
+
+        full.put( END );
+    }
+
+    /**
+     * Reads into the buffer until it is full or the source has nothing more available right away.
+     *
+     * @return false at the end of the input
+     */
+    private boolean read( ByteBuffer b ) throws IOException
+    {
+        byte[] bytes = b.array();
+        int len = 0;
+        int num;
+
+        do
+        {
+            num = in.read( bytes, len, (bytes.length - len) );
+            if ( num > 0 )
+            {
+                len += num;
+            }
+        }
+        while ( num >= 0 && len < bytes.length && ( len == 0 || in.available() > 0 ) );
+
+        b.position( 0 );
+        b.limit( len );
+        return ( len > 0 );
+    }
+
+    protected boolean nextBuffer() throws IOException
+    {
+        if ( ended )
+        {
+            return false;
+        }
+
+        // hand the buffer just read back for refilling
+        empty.put( buffer );
+        buffer = END;
+
+        ByteBuffer b = full.take();
+        if ( b == null || b == END )
+        {
+            ended = true;
+            if ( error != null )
+            {
+                throw error;
+            }
+            return false;
+        }
+
+        buffer = b;
+        return true;
+    }
+
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    public void mark( int readLimit )
+    {
+    }
+
+    public void reset() throws IOException
+    {
+        throw new IOException( "mark/reset not supported" );
+    }
+
+    public void close() throws IOException
+    {
+        full.close();
+        empty.close();
+        in.close();
+    }
+}
@@ -0,0 +1,152 @@
+package org.jsoupstream;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring handing items from exactly one producer thread to exactly one consumer thread without locks.
+ * Each side owns one counter and only reads the other's, caching it until the ring looks full or empty.
+ *
+ * A side that has to wait spins briefly and then records itself and parks until the other side moves its
+ * counter, so a stalled source leaves the waiting thread asleep. The counters are written with a full fence
+ * for that: either the side moving its counter sees the waiter and unparks it, or the waiter sees the counter
+ * moved and does not park. Either side can close() the ring, which ends the waiting of the other.
+ */
+final class SpscRing<T>
+{
+    private static final int SPINS = 256;
+
+    private final Object[] slots;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(); // next slot to take, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next slot to put, written by the producer
+    private long cachedHead = 0; // producer's view of head
+    private long cachedTail = 0; // consumer's view of tail
+    private volatile boolean closed = false;
+    private volatile Thread producerWaiter; // parked in put() until head moves
+    private volatile Thread consumerWaiter; // parked in take() until tail moves
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    SpscRing( int capacity )
+    {
+        int size = Integer.highestOneBit( Math.max( 2, capacity ) - 1 ) << 1;
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds the item, waiting while the ring is full. Producer only.
+     *
+     * @return false if the ring was closed
+     */
+    boolean put( T item )
+    {
+        long t = tail.get();
+        int spins = 0;
+
+        while ( (t - cachedHead) == slots.length )
+        {
+            cachedHead = head.get();
+            if ( (t - cachedHead) < slots.length )
+            {
+                break;
+            }
+            if ( closed )
+            {
+                return false;
+            }
+            if ( spins++ < SPINS )
+            {
+                Thread.onSpinWait();
+            }
+            else
+            {
+                producerWaiter = Thread.currentThread();
+                if ( (t - head.get()) == slots.length && ! closed )
+                {
+                    LockSupport.park( this );
+                }
+                producerWaiter = null;
+            }
+        }
+
+        slots[(int)t & mask] = item;
+        tail.set( t + 1 );
+        wake( consumerWaiter );
+        return true;
+    }
+
+    /**
+     * Removes the oldest item, waiting while the ring is empty. Consumer only.
+     *
+     * @return null once the ring is closed and empty
+     */
+    @SuppressWarnings("unchecked")
+    T take()
+    {
+        long h = head.get();
+        int spins = 0;
+
+        while ( h == cachedTail )
+        {
+            cachedTail = tail.get();
+            if ( h < cachedTail )
+            {
+                break;
+            }
+            if ( closed )
+            {
+                // items put just before the ring was closed are still handed out
+                cachedTail = tail.get();
+                if ( h == cachedTail )
+                {
+                    return null;
+                }
+                break;
+            }
+            if ( spins++ < SPINS )
+            {
+                Thread.onSpinWait();
+            }
+            else
+            {
+                consumerWaiter = Thread.currentThread();
+                if ( h == tail.get() && ! closed )
+                {
+                    LockSupport.park( this );
+                }
+                consumerWaiter = null;
+            }
+        }
+
+        int slot = (int)h & mask;
+        T item = (T)slots[slot];
+        slots[slot] = null;
+        head.set( h + 1 );
+        wake( producerWaiter );
+        return item;
+    }
+
+    void close()
+    {
+        closed = true;
+        wake( producerWaiter );
+        wake( consumerWaiter );
+    }
+
+    boolean isClosed()
+    {
+        return closed;
+    }
+
+    private static void wake( Thread waiter )
+    {
+        if ( waiter != null )
+        {
+            LockSupport.unpark( waiter );
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.jsoupstream;
+
+/**
+ * One level of the element stack: the start tag of the element open at the level and how many elements have been
+ * started at the level since its parent was, the sequence the selectors match :nth-child and siblings by. Earlier
+ * siblings are let go as the next one starts, so the stack holds one tag per level however many siblings there are.
+ */
+final class StackFrame
+{
+    private HtmlToken token; // null if no element has been started at the level
+    private int count = 0;
+
+    HtmlToken getToken()
+    {
+        return token;
+    }
+
+    int getCount()
+    {
+        return count;
+    }
+
+    void push( HtmlToken token, TokenArena arena )
+    {
+        if ( this.token != null )
+        {
+            arena.leaveStack( this.token );
+        }
+        token.onStack = true;
+        this.token = token;
+        count++;
+    }
+
+    /**
+     * Lets go of the tag, called when the parent element closes.
+     */
+    void clear( TokenArena arena )
+    {
+        if ( token != null )
+        {
+            arena.leaveStack( token );
+            token = null;
+        }
+        count = 0;
+    }
+}
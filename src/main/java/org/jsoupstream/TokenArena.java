@@ -0,0 +1,110 @@
+package org.jsoupstream;
+
+import java.nio.charset.Charset;
+
+/**
+ * Hands out the HtmlTokens of one document and takes them back once they have been written, so a document of
+ * any size is parsed with the handful of tokens that are buffered at a time. Each HtmlLexer owns an arena, so
+ * documents parsed on different threads never share one and no locking is needed.
+ */
+final class TokenArena
+{
+    private static final int BLOCK = 20; // tokens created at once when the arena runs dry
+    private static final int MAX_RETAINED_BYTES = 16384; // larger byte arrays are not kept by recycled tokens
+
+    private HtmlToken[] free = new HtmlToken[BLOCK * 4];
+    private int size = 0;
+
+    HtmlToken allocate(byte[] s, int offset, int len, HtmlToken.Type t, Charset charset)
+    {
+        if ( size == 0 )
+        {
+            for ( int i = 0; i < BLOCK; i++ )
+            {
+                free[size++] = new HtmlToken();
+            }
+        }
+
+        HtmlToken token = free[--size];
+        free[size] = null;
+        token.set( s, offset, len, t, charset );
+        return token;
+    }
+
+    /**
+     * Takes back a token that has been written. A token still on the element stack is recycled when it leaves
+     * the stack.
+     */
+    void release(HtmlToken token)
+    {
+        if ( token.onStack )
+        {
+            token.relinquished = true;
+        }
+        else
+        {
+            recycle( token );
+        }
+    }
+
+    /**
+     * Called when the token is taken off the element stack. It is recycled if it was already released,
+     * otherwise the later call to release() recycles it.
+     */
+    void leaveStack(HtmlToken token)
+    {
+        token.onStack = false;
+        if ( token.relinquished )
+        {
+            token.relinquished = false;
+            recycle( token );
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Moves the recycled tokens to a new arena, to be handed to a lexer running on another thread.
+     */
+    TokenArena drain()
+    {
+        TokenArena other = new TokenArena();
+        if ( size > 0 )
+        {
+            HtmlToken[] tokens = other.free;
+            other.free = free;
+            other.size = size;
+            free = tokens;
+            size = 0;
+        }
+        return other;
+    }
+
+    /**
+     * Takes over the recycled tokens of another arena, one drained on another thread.
+     */
+    void absorb(TokenArena other)
+    {
+        for ( int i = 0; i < other.size; i++ )
+        {
+            recycle( other.free[i] );
+            other.free[i] = null;
+        }
+        other.size = 0;
+    }
+
+    private void recycle(HtmlToken token)
+    {
+        token.trim( MAX_RETAINED_BYTES );
+        if ( size == free.length )
+        {
+            HtmlToken[] bigger = new HtmlToken[size * 2];
+            System.arraycopy( free, 0, bigger, 0, size );
+            free = bigger;
+        }
+        free[size++] = token;
+    }
+}
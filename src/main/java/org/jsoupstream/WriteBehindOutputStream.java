@@ -0,0 +1,162 @@
+package org.jsoupstream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects what is written into blocks and writes full blocks to the underlying stream on another thread. A
+ * fixed set of blocks goes round between the two threads in a pair of SpscRings, so nothing is allocated
+ * after construction.
+ *
+ * flush() waits until everything written has reached the underlying stream. finish() flushes and ends the
+ * writing thread, it does not close the underlying stream.
+ */
+class WriteBehindOutputStream extends OutputStream
+{
+    private static final int BLOCK_SIZE = 65536;
+    private static final int BLOCKS = 8;
+
+    private static class Block
+    {
+        final byte[] data;
+        int length = 0;
+
+        Block( int size )
+        {
+            this.data = ( size == 0 ) ? null : new byte[size];
+        }
+    }
+
+    private static final Block FLUSH = new Block( 0 ); // asks the writing thread to flush
+
+    private final OutputStream out;
+    private final SpscRing<Block> full = new SpscRing<Block>( BLOCKS );
+    private final SpscRing<Block> empty = new SpscRing<Block>( BLOCKS );
+    private final SpscRing<Block> flushed = new SpscRing<Block>( 2 );
+    private volatile IOException error;
+    private Block block;
+    private boolean finished = false;
+
+    WriteBehindOutputStream( OutputStream out, Executor executor )
+    {
+        this.out = out;
+        for ( int i = 1; i < BLOCKS; i++ )
+        {
+            empty.put( new Block( BLOCK_SIZE ) );
+        }
+        this.block = new Block( BLOCK_SIZE );
+        executor.execute( this::drain );
+    }
+
+    // the writing thread
+    private void drain()
+    {
+        Block b;
+
+        while ( (b = full.take()) != null )
+        {
+            try
+            {
+                if ( b == FLUSH )
+                {
+                    out.flush();
+                }
+                else if ( error == null )
+                {
+                    out.write( b.data, 0, b.length );
+                }
+            }
+            catch ( IOException e )
+            {
+                error = e;
+            }
+            catch ( RuntimeException e )
+            {
+                error = new IOException( e );
+            }
+
+            if ( b == FLUSH )
+            {
+                flushed.put( b );
+            }
+            else
+            {
+                empty.put( b );
+            }
+        }
+    }
+
+    public void write( int b ) throws IOException
+    {
+        if ( block.length == BLOCK_SIZE )
+        {
+            send();
+        }
+        block.data[block.length++] = (byte)b;
+    }
+
+    public void write( byte[] bytes, int offset, int len ) throws IOException
+    {
+        while ( len > 0 )
+        {
+            if ( block.length == BLOCK_SIZE )
+            {
+                send();
+            }
+            int num = Math.min( len, (BLOCK_SIZE - block.length) );
+            System.arraycopy( bytes, offset, block.data, block.length, num );
+            block.length += num;
+            offset += num;
+            len -= num;
+        }
+    }
+
+    public void flush() throws IOException
+    {
+        if ( block.length > 0 )
+        {
+            send();
+        }
+
+        // the blocks are written in order, so everything before the marker is out once it comes back
+        full.put( FLUSH );
+        flushed.take();
+        checkError();
+    }
+
+    /**
+     * Flushes and ends the writing thread.
+     */
+    void finish() throws IOException
+    {
+        if ( ! finished )
+        {
+            finished = true;
+            try
+            {
+                flush();
+            }
+            finally
+            {
+                full.close();
+            }
+        }
+    }
+
+    private void send() throws IOException
+    {
+        checkError();
+        full.put( block );
+        block = empty.take();
+        block.length = 0;
+    }
+
+    private void checkError() throws IOException
+    {
+        if ( error != null )
+        {
+            throw new IOException( "write failed", error );
+        }
+    }
+}
@@ -48,12 +48,8 @@ public class TestParser {
                 }
 
                 HtmlLexer lexer = new HtmlLexer( html_is );
-                String result = parser.parse( lexer );
+                parser.parse( lexer, System.out );
                 html_is.close();
-                System.out.print( result );
-
-                // parser must be reset if it to be reused
-                parser.reset();
             }
 		} catch(Exception e) {
 			// if any I/O error occurs
@@ -2,7 +2,7 @@ package org.jsoupstream.selector;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Iterator;
 import java.lang.StringBuffer;
 import java.lang.reflect.Method;
@@ -16,7 +16,8 @@ import org.jsoupstream.HtmlToken;
 public class Action
 {
     private Class<?> callbackClass = null;
-    private static HashMap<String,Class<?>> callbackClasses = new HashMap<String,Class<?>>();
+    private boolean decodeTokens = false; // for callbacks that may read the deprecated HtmlToken.str
+    private static ConcurrentHashMap<String,Class<?>> callbackClasses = new ConcurrentHashMap<String,Class<?>>();
     private final String function;
     private ArrayList<String> arguments = new ArrayList<String>();
 
@@ -43,6 +44,7 @@ public class Action
                 callbackClasses.put( callbackClass, this.callbackClass );
             }
             this.function = func.substring( pos + 1 );
+            this.decodeTokens = ! callbackClass.equals( "org.jsoupstream.Functions" );
         }
     }
 
@@ -81,6 +83,16 @@ public class Action
     public boolean execute( Selector selector, List<HtmlToken>token_list )
     {
         boolean ret = false;
+        if ( decodeTokens )
+        {
+            for ( HtmlToken token : token_list )
+            {
+                if ( token != null )
+                {
+                    token.getString();
+                }
+            }
+        }
         try
         {
             // passed String parameters
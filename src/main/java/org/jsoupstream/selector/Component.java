@@ -3,7 +3,6 @@ package org.jsoupstream.selector;
 import org.jsoupstream.HtmlToken;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 /**
  *  Represents a single component of a selector. (i.e. Combinator TAG[attr]:pseudo) 
@@ -23,6 +22,7 @@ public class Component
 
     private final CombinatorType combinator; // relation to preceeding Component in Selector
     private final String tagSelector; // tag name or '*' (universal selector)
+    private final HtmlToken.Type specialType; // the token comment, cdata, processing-instruction and doctype match
 
     // Pseudo selectors:
     // first-child == 0n+1, odd = 2n+1, even = 2n+0, 5th child = 0n+5
@@ -31,14 +31,36 @@ public class Component
 
     // Attribute selectors:
     private ArrayList<AttributeSelector> attributes = new ArrayList<AttributeSelector>();
- 
-    // All level/sequence combinations this component has matched on
-    private LevelsMatchedArray levelsMatched = new LevelsMatchedArray();
+
+    // The predicates matchesElement() tests: TAG, NTH_CHILD and then the attribute selectors
+    private static final int TAG = 0;
+    private static final int NTH_CHILD = 1;
 
     public Component(String tag, CombinatorType type)
     {
         this.tagSelector = tag;
         this.combinator = type;
+
+        if ( tag.equalsIgnoreCase( "comment" ) )
+        {
+            this.specialType = HtmlToken.Type.START_COMMENT;
+        }
+        else if ( tag.equalsIgnoreCase( "cdata" ) )
+        {
+            this.specialType = HtmlToken.Type.START_CDATA;
+        }
+        else if ( tag.equalsIgnoreCase( "processing-instruction" ) )
+        {
+            this.specialType = HtmlToken.Type.PROCESSING_INSTRUCTION;
+        }
+        else if ( tag.equalsIgnoreCase( "doctype" ) )
+        {
+            this.specialType = HtmlToken.Type.DOCTYPE;
+        }
+        else
+        {
+            this.specialType = null;
+        }
     }
 
     public void addAttribute( AttributeSelector attribute )
@@ -52,13 +74,16 @@ public class Component
         nthChildB = b;
     }
 
-    // Called with a single starting or self closing element
+    // Called with a single starting or self closing element. The component holds no state, the caller records
+    // the level / sequence of a match.
     public boolean matches( List<HtmlToken> tokenQueue, int lastLevel, int lastSequence, int level, int sequence )
     {
-        Iterator<HtmlToken> it = tokenQueue.iterator();
-        boolean state = true;
-        HtmlToken token;
+        return matchesCombinator( lastLevel, lastSequence, level, sequence ) && matchesElement( tokenQueue, sequence );
+    }
 
+    // Whether the element is related to the one the preceding component matched as the combinator requires.
+    boolean matchesCombinator( int lastLevel, int lastSequence, int level, int sequence )
+    {
         // check the combinator
         switch ( combinator )
         {
@@ -95,339 +120,255 @@ public class Component
         default:
             break;
         }
- 
-        // special check for comment
-        if ( tagSelector.equalsIgnoreCase( "comment" ) )
-        {
-            if ( it.hasNext() )
-            {
-                token = it.next();
-                if ( token.type == HtmlToken.Type.START_COMMENT )
-                {
-                    // save the level / sequence at which match occurred
-                    levelsMatched.add( level, sequence );
-                    return true;
-                }
-                else
-                {
-                    return false;
-                }
-            }
-            else
-            {
-                return false;
-            }
-        }
 
-        // special check for cdata
-        if ( tagSelector.equalsIgnoreCase( "cdata" ) )
+        return true;
+    }
+
+    // Whether any of the matches of the preceding component is related to the element as the combinator requires.
+    boolean matchesCombinator( LevelsMatchedArray lastLevels, int level, int sequence )
+    {
+        switch ( combinator )
         {
-            if ( it.hasNext() )
-            {
-                token = it.next();
-                if ( token.type == HtmlToken.Type.START_CDATA )
-                {
-                    // save the level / sequence at which match occurred
-                    levelsMatched.add( level, sequence );
-                    return true;
-                }
-                else
-                {
-                    return false;
-                }
-            }
-            else
-            {
-                return false;
-            }
+        case ROOT:
+            return ( lastLevels.hasMatches() && lastLevels.getShallowest() <= 0 );
+        case CHILD:
+            return lastLevels.hasLevel( level - 1 );
+        case ADJACENT:
+            return lastLevels.hasSequence( level, sequence - 1 );
+        case SIBLING:
+            return ( lastLevels.getFirstSequence( level ) < sequence );
+        case DESCENDENT:
+            return ( lastLevels.hasMatches() && lastLevels.getShallowest() < level );
+        default:
+            return lastLevels.hasMatches();
         }
+    }
+
+    // Whether the element itself matches: the tag, :nth-child and attribute selectors. The result does not depend
+    // on the combinator, so components with the same getTestKey() share it.
+    boolean matchesElement( List<HtmlToken> tokenQueue, int sequence )
+    {
+        return matchesElement( new Element( tokenQueue ), sequence );
+    }
+
+    boolean matchesElement( Element element, int sequence )
+    {
+        return matchesElement( element, sequence, null );
+    }
 
-        // special check for doctype
-        if ( tagSelector.equalsIgnoreCase( "processing-instruction" ) )
+    /**
+     * @param testOrder the order to test the predicates in, from newTestOrder(), null for the order written
+     */
+    boolean matchesElement( Element element, int sequence, TestOrder testOrder )
+    {
+        // special check for comment, cdata, processing-instruction and doctype
+        if ( specialType != null )
         {
-            if ( it.hasNext() )
-            {
-                token = it.next();
-                if ( token.type == HtmlToken.Type.PROCESSING_INSTRUCTION )
-                {
-                    // save the level / sequence at which match occurred
-                    levelsMatched.add( level, sequence );
-                    return true;
-                }
-                else
-                {
-                    return false;
-                }
-            }
-            else
-            {
-                return false;
-            }
+            return ( element.getFirstType() == specialType );
         }
 
-        // special check for doctype
-        if ( tagSelector.equalsIgnoreCase( "doctype" ) )
+        int[] order = ( testOrder == null ) ? null : testOrder.getOrder();
+        int count = attributes.size() + 2;
+
+        for ( int i = 0; i < count; i++ )
         {
-            if ( it.hasNext() )
+            int predicate = ( order == null ) ? i : order[i];
+            if ( ! matchesPredicate( predicate, element, sequence ) )
             {
-                token = it.next();
-                if ( token.type == HtmlToken.Type.DOCTYPE )
+                if ( testOrder != null )
                 {
-                    // save the level / sequence at which match occurred
-                    levelsMatched.add( level, sequence );
-                    return true;
-                }
-                else
-                {
-                    return false;
+                    testOrder.rejected( predicate );
                 }
+                return false;
             }
-            else
+            if ( testOrder != null )
             {
-                return false;
+                testOrder.passed( predicate );
             }
         }
 
-        // check the TAG 
-        state = false;
-        while ( it.hasNext() )
+        return true;
+    }
+
+    private boolean matchesPredicate( int predicate, Element element, int sequence )
+    {
+        switch ( predicate )
         {
-            token = it.next();
-            if ( token.type == HtmlToken.Type.TAG_NAME )
-            {
-                if ( tagSelector.equals( "*" ) || tagSelector.equalsIgnoreCase( token.str ) )
-                {
-                    state = true;
-                }
-                break;
-            }
-            else if ( token.type == HtmlToken.Type.CLOSE_TAG )
+        case TAG:
+            return ( element.getTag() != null
+                    && ( tagSelector.equals( "*" ) || tagSelector.equalsIgnoreCase( element.getTag() ) ) );
+        case NTH_CHILD:
+            if ( nthChildA == 0 )
             {
-                break;
+                return ( sequence == nthChildB );
             }
+            return ( ( sequence - nthChildB ) * nthChildA >= 0 && ( sequence - nthChildB ) % nthChildA == 0 );
+        default:
+            return matchesAttribute( attributes.get( predicate - 2 ), element );
         }
+    }
 
-        if ( ! state )
+    private boolean matchesAttribute( AttributeSelector attributeSelector, Element element )
+    {
+        Element.Attribute attribute = element.getAttribute( attributeSelector.getAttributeName() );
+        if ( attribute == null )
         {
             return false;
         }
-
-        // check pseudo selector :nth-child
-        if ( nthChildA == 0 )
+        if ( attributeSelector.getComparatorType() == AttributeSelector.ComparatorType.NONE )
         {
-            if ( sequence != nthChildB )
-            {
-                return false;
-            }
+            // attribute exists
+            return true;
         }
-        else if ( ( sequence - nthChildB ) * nthChildA < 0
-                || ( sequence - nthChildB ) % nthChildA != 0 )
+        String value = attribute.getValue();
+        if ( value == null )
         {
             return false;
         }
 
-        it = tokenQueue.iterator();
+        String attributeValue = attributeSelector.getAttributeValue();
+        switch ( attributeSelector.getComparatorType() )
+        {
+        case EQUALS:
+            return value.equals( attributeValue );
+        case STARTS_WITH:
+            return value.startsWith( attributeValue );
+        case ENDS_WITH:
+            return value.endsWith( attributeValue );
+        case SUBSTRING:
+            return ( value.indexOf( attributeValue ) >= 0 );
+        case CONTAINS:
+            return attribute.getWords().contains( attributeValue );
+        case CONTAINS_HYPHENATED:
+            return attribute.getParts().contains( attributeValue );
+        default:
+            return false;
+        }
+    }
 
-        // check the any attribute selectors
-        Iterator<AttributeSelector> attributeIterator = attributes.iterator();
-        AttributeSelector attributeSelector;
-        String attributeName;
-        String attributeValue;
-        String arr[];
-        boolean attributeFound = false;
+    /**
+     * A TestOrder for matchesElement() to test the attribute selectors and tag in the order that rejects soonest,
+     * learnt from the elements tested. The MatchState keeps one per test, so it is only changed by one thread.
+     * null, to test in the order written, if less than two predicates select (a tag other than *, :nth-child
+     * and the attribute selectors), or an attribute selector would throw for a missing value (i.e. [href^=]).
+     */
+    TestOrder newTestOrder()
+    {
+        int selecting = attributes.size();
+        if ( ! tagSelector.equals( "*" ) )
+        {
+            selecting++;
+        }
+        if ( nthChildA != 1 || nthChildB != 0 )
+        {
+            selecting++;
+        }
+        if ( selecting < 2 || specialType != null )
+        {
+            return null;
+        }
 
-        while ( attributeIterator.hasNext() )
+        int[] costs = new int[attributes.size() + 2];
+        costs[TAG] = 1;
+        costs[NTH_CHILD] = 1;
+        for ( int i = 0; i < attributes.size(); i++ )
         {
-            attributeSelector = attributeIterator.next();
-            it = tokenQueue.iterator();
-            attributeFound = false;
-            while ( it.hasNext() )
+            AttributeSelector attribute = attributes.get( i );
+            switch ( attribute.getComparatorType() )
             {
-                token = it.next();
-                if ( token.type == HtmlToken.Type.ATTRIBUTE_NAME )
+            case NONE:
+            case EQUALS:
+                costs[i + 2] = 2;
+                break;
+            case CONTAINS:
+            case CONTAINS_HYPHENATED:
+                // the value is split into words
+                costs[i + 2] = 4;
+                break;
+            default:
+                if ( attribute.getAttributeValue() == null )
                 {
-                    attributeName = attributeSelector.getAttributeName();
-                    if ( attributeName.equalsIgnoreCase( token.str ) )
-                    {
-                        attributeFound = true;
-                        if ( attributeSelector.getComparatorType() == AttributeSelector.ComparatorType.NONE )
-                        {
-                            // attribute exists so move to next attribute selector (if exists)
-                            break;
-                        }
-
-                        // advance to the equals
-                        while ( it.hasNext() )
-                        {
-                            token = it.next();
-                            if ( token.type == HtmlToken.Type.WHITESPACE )
-                            {
-                                continue;
-                            }
-                            else if ( token.type == HtmlToken.Type.EQUALS )
-                            {
-                                break;
-                            }
-                            else
-                            {
-                                state = false;
-                                break;
-                            }
-                        }
-
-                        if ( ! state )
-                        {
-                            return false;
-                        }
-
-                        // advance to the attribute value
-                        while ( it.hasNext() )
-                        {
-                            token = it.next();
-                            if ( token.type == HtmlToken.Type.WHITESPACE )
-                            {
-                                continue;
-                            }
-                            else if ( token.type == HtmlToken.Type.ATTRIBUTE_VALUE )
-                            {
-                                break;
-                            }
-                            else
-                            {
-                                state = false;
-                                break;
-                            }
-                        }
-
-                        if ( ! state )
-                        {
-                            return false;
-                        }
-
-                        attributeValue = attributeSelector.getAttributeValue();
-                        switch ( attributeSelector.getComparatorType() )
-                        {
-                        case EQUALS:
-                            state = token.str.equals( attributeValue );
-                            break;
-                        case STARTS_WITH:
-                            state = token.str.startsWith( attributeValue );
-                            break;
-                        case ENDS_WITH:
-                            state = token.str.endsWith( attributeValue );
-                            break;
-                        case SUBSTRING:
-                            state = ( token.str.indexOf( attributeValue ) >= 0 );
-                            break;
-                        case CONTAINS:
-                            if ( token.str.charAt(0) == '"' || token.str.charAt(0) == '\'' )
-                            {
-                                arr = token.str.substring(1,token.str.length()-1).split( " +" );
-                            }
-                            else
-                            {
-                                arr = token.str.split( " +" );
-                            }
-                            state = false;
-                            for ( String val : arr )
-                            {
-                                if ( val.equals( attributeValue ) )
-                                {
-                                    state = true;
-                                    break;
-                                }
-                            }
-                            break;
-                        case CONTAINS_HYPHENATED:
-                            if ( token.str.charAt(0) == '"' || token.str.charAt(0) == '\'' )
-                            {
-                                arr = token.str.substring(1,token.str.length()-1).split( "-+" );
-                            }
-                            else
-                            {
-                                arr = token.str.split( "-+" );
-                            }
-                            state = false;
-                            for ( String val : arr )
-                            {
-                                if ( val.equals( attributeValue ) )
-                                {
-                                    state = true;
-                                    break;
-                                }
-                            }
-                            break;
-                        default:
-                            state = false;
-                            break;
-                        }
-
-                        // attribute found, break out of while loop
-                        break;
-                    }
+                    return null;
                 }
-            }
-
-            if ( ! state || ! attributeFound )
-            {
-                return false;
+                costs[i + 2] = 3;
+                break;
             }
         }
-
-        // save the level / sequence at which match occurred
-        levelsMatched.add( level, sequence );
-
-        return true;
-    }
-
-    public boolean hasLevelsMatched()
-    {
-        return levelsMatched.hasMatches();
+        return new TestOrder( costs );
     }
 
-    public void clearLevelMatched( int level, boolean implied )
+    public int getLevelAdjustment()
     {
-        if ( implied )
-        {
-            levelsMatched.remove( level, -1 );
-        }
-        else
+        switch ( combinator )
         {
-            levelsMatched.remove( level, 0 );
+        case ROOT: return 0;
+        case DESCENDENT: return 0;
+        case CHILD: return 0;
+        case ADJACENT: return 1;
+        case SIBLING: return 1;
+        default: return 0;
         }
     }
 
-    public void resetLevelIndex()
+    int getNthChildA()
     {
-        levelsMatched.resetIndex();
+        return nthChildA;
     }
 
-    public int getNextMatchedLevel()
+    int getNthChildB()
     {
-        return levelsMatched.getNext();
+        return nthChildB;
     }
 
-    public String printMatchedLevels()
+    List<AttributeSelector> getAttributes()
     {
-        return levelsMatched.toString();
+        return attributes;
     }
 
-    public void reset()
+    /**
+     * Equal for components that matchesElement() the same elements: the same tag, :nth-child and attribute
+     * selectors in the same order.
+     */
+    List<Object> getTestKey()
     {
-        levelsMatched.clear();
+        ArrayList<Object> key = new ArrayList<Object>();
+        key.add( tagSelector );
+        key.add( nthChildA );
+        key.add( nthChildB );
+        for ( AttributeSelector attribute : attributes )
+        {
+            key.add( attribute.getAttributeName() );
+            key.add( attribute.getComparatorType() );
+            key.add( attribute.getAttributeValue() );
+        }
+        return key;
     }
 
-    public int getLevelAdjustment()
+    /**
+     * The key the Stylesheet indexes this component by, one an element must have to match it: "#id" or ".class"
+     * if the component has one, else the tag name. null for the universal selector without either.
+     */
+    String getIndexKey()
     {
-        switch ( combinator )
+        for ( AttributeSelector attribute : attributes )
         {
-        case ROOT: return 0;
-        case DESCENDENT: return 0;
-        case CHILD: return 0;
-        case ADJACENT: return 1;
-        case SIBLING: return 1;
-        default: return 0;
+            if ( attribute.getComparatorType() == AttributeSelector.ComparatorType.EQUALS
+                    && attribute.getAttributeName().equalsIgnoreCase( "id" ) )
+            {
+                return "#" + attribute.getAttributeValue();
+            }
         }
+
+        for ( AttributeSelector attribute : attributes )
+        {
+            if ( attribute.getComparatorType() == AttributeSelector.ComparatorType.CONTAINS
+                    && attribute.getAttributeName().equalsIgnoreCase( "class" ) )
+            {
+                return "." + attribute.getAttributeValue();
+            }
+        }
+
+        return tagSelector.equals( "*" ) ? null : tagSelector;
     }
 
     public String toString()
@@ -0,0 +1,231 @@
+package org.jsoupstream.selector;
+
+import org.jsoupstream.HtmlToken;
+import java.util.List;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Arrays;
+
+/**
+ *  What the components of a selector test of a start tag, read from its tokens in one pass: the tag name and the
+ *  attributes. All components checked against the tag read it from here. The object is reused for the next tag,
+ *  values and their words are only made when asked for.
+ */
+final class Element
+{
+    /**
+     *  An attribute of the tag. The value is the token compared, null if the name is not followed by an equals
+     *  and a value.
+     */
+    final class Attribute
+    {
+        private String name;
+        private int valueAt; // the index of the value token, -1 if there is none
+        private String value;
+        private Set<String> words; // split on spaces, for ~=
+        private List<String> parts; // split on hyphens, for |=
+
+        private void set( String name, int valueAt )
+        {
+            this.name = name;
+            this.valueAt = valueAt;
+            this.value = null;
+            this.words = null;
+            this.parts = null;
+        }
+
+        String getValue()
+        {
+            if ( value == null && valueAt >= 0 )
+            {
+                value = tokenQueue.get( valueAt ).getString();
+            }
+            return value;
+        }
+
+        Set<String> getWords()
+        {
+            if ( words == null )
+            {
+                words = new HashSet<String>( Arrays.asList( unquoted().split( " +" ) ) );
+            }
+            return words;
+        }
+
+        List<String> getParts()
+        {
+            if ( parts == null )
+            {
+                parts = Arrays.asList( unquoted().split( "-+" ) );
+            }
+            return parts;
+        }
+
+        private String unquoted()
+        {
+            String value = getValue();
+            if ( value.length() > 1 && ( value.charAt(0) == '"' || value.charAt(0) == '\'' ) )
+            {
+                return value.substring( 1, value.length() - 1 );
+            }
+            return value;
+        }
+    }
+
+    private List<HtmlToken> tokenQueue;
+    private HtmlToken.Type firstType; // of the first token, the special selectors only look at that
+    private String tag; // null if there is no tag name before the end of the tag
+    private Attribute[] attributes = new Attribute[8]; // in the order of the tag
+    private int attributeCount = 0;
+
+    Element()
+    {
+    }
+
+    Element( List<HtmlToken> tokenQueue )
+    {
+        parse( tokenQueue );
+    }
+
+    void parse( List<HtmlToken> tokenQueue )
+    {
+        int size = tokenQueue.size();
+        boolean tagDone = false;
+        HtmlToken token;
+
+        this.tokenQueue = tokenQueue;
+        firstType = ( size == 0 ) ? null : tokenQueue.get( 0 ).type;
+        tag = null;
+        attributeCount = 0;
+
+        for ( int i = 0; i < size; i++ )
+        {
+            token = tokenQueue.get( i );
+            if ( ! tagDone )
+            {
+                if ( token.type == HtmlToken.Type.TAG_NAME )
+                {
+                    tag = token.getString();
+                    tagDone = true;
+                }
+                else if ( token.type == HtmlToken.Type.CLOSE_TAG )
+                {
+                    tagDone = true;
+                }
+            }
+
+            if ( token.type == HtmlToken.Type.ATTRIBUTE_NAME )
+            {
+                if ( attributeCount == attributes.length )
+                {
+                    attributes = Arrays.copyOf( attributes, (attributeCount * 2) );
+                }
+                if ( attributes[attributeCount] == null )
+                {
+                    attributes[attributeCount] = new Attribute();
+                }
+                attributes[attributeCount++].set( token.getString(), valueAt( tokenQueue, i ) );
+            }
+        }
+    }
+
+    // the value of the attribute named at i: the next token that is not whitespace must be the equals and the
+    // one after that the value. At the end of the tokens the last one is taken.
+    private static int valueAt( List<HtmlToken> tokenQueue, int i )
+    {
+        int at = i;
+        int j = i + 1;
+
+        while ( j < tokenQueue.size() )
+        {
+            at = j++;
+            if ( tokenQueue.get( at ).type == HtmlToken.Type.WHITESPACE )
+            {
+                continue;
+            }
+            else if ( tokenQueue.get( at ).type == HtmlToken.Type.EQUALS )
+            {
+                break;
+            }
+            return -1;
+        }
+
+        while ( j < tokenQueue.size() )
+        {
+            at = j++;
+            if ( tokenQueue.get( at ).type == HtmlToken.Type.WHITESPACE )
+            {
+                continue;
+            }
+            else if ( tokenQueue.get( at ).type == HtmlToken.Type.ATTRIBUTE_VALUE )
+            {
+                break;
+            }
+            return -1;
+        }
+
+        return at;
+    }
+
+    HtmlToken.Type getFirstType()
+    {
+        return firstType;
+    }
+
+    String getTag()
+    {
+        return tag;
+    }
+
+    /**
+     * The first attribute of the name, ignoring case. null if there is none.
+     */
+    Attribute getAttribute( String name )
+    {
+        for ( int i = 0; i < attributeCount; i++ )
+        {
+            if ( attributes[i].name.equalsIgnoreCase( name ) )
+            {
+                return attributes[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes into signature the first token type, the tag and the attributes with one of the names, with their
+     * values: equal for elements the tests of attributes of those names cannot tell apart.
+     */
+    void getSignature( Set<String> names, Signature signature )
+    {
+        signature.clear();
+        signature.append( ( firstType == null ) ? null : firstType.name() );
+        signature.append( tag );
+        for ( int i = 0; i < attributeCount && ! signature.isTooLong(); i++ )
+        {
+            if ( names.contains( attributes[i].name ) )
+            {
+                signature.append( attributes[i].name );
+                signature.append( attributes[i].getValue() );
+            }
+        }
+    }
+
+    /**
+     * The value of the id attribute, null if there is none.
+     */
+    String getId()
+    {
+        Attribute id = getAttribute( "id" );
+        return ( id == null ) ? null : id.getValue();
+    }
+
+    /**
+     * The words of the class attribute, null if there is none.
+     */
+    Set<String> getClasses()
+    {
+        Attribute classes = getAttribute( "class" );
+        return ( classes == null || classes.getValue() == null ) ? null : classes.getWords();
+    }
+}
@@ -1,132 +1,130 @@
 package org.jsoupstream.selector;
 
+import java.util.Arrays;
+
 /**
- *  Keeps track of active status, level and sequence where the match occured.
- *  A single integer is used to represent active status, level and sequence.
+ *  Keeps track of the level and sequence where the matches of a component occured.
+ *  The sequences are kept by level, in ascending order, and the levels that have any in a stack, so adding a
+ *  match and removing the matches of the levels closed take constant time however many siblings or levels
+ *  there are.
  */
 public class LevelsMatchedArray
 {
-    private final static int FACTOR = 10000;
-    private final static int ACTIVE_MASK = 0b01000000000000000000000000000000;
     private final static int INCREMENT = 4;
 
-    private int max = INCREMENT; // upper bound of element in array.
-    private int current = 0; // current position in array - for searching only.
-    private int[] levels;
+    private int[][] sequences = new int[INCREMENT][]; // by level, ascending
+    private int[] counts = new int[INCREMENT]; // number of sequences at each level
+    private int[] levels = new int[INCREMENT]; // the levels that have a match, ascending
+    private int size = 0; // number of levels that have a match
 
     public LevelsMatchedArray()
     {
-        levels = new int[max];
     }
 
     public void add( int level, int sequence )
     {
-        for ( int i = 0; i < max; i++ )
+        if ( level >= counts.length )
         {
-            if ( levels[i] == 0 )
-            {
-                levels[i] = (( level * FACTOR ) + sequence) | ACTIVE_MASK;
-                return;
-            }
+            int newMax = Math.max( level + 1, counts.length * 2 );
+            sequences = Arrays.copyOf( sequences, newMax );
+            counts = Arrays.copyOf( counts, newMax );
         }
 
-        // grow the array to accomodate more level/sequence pairs
-        int newMax = max + INCREMENT;
-        int temp[] = new int[newMax];
-        for ( int i = 0; i < max; i++ )
+        int count = counts[level];
+        if ( count == 0 )
         {
-            temp[i] = levels[i];
+            addLevel( level );
         }
-        temp[max] = (( level * FACTOR ) + sequence) | ACTIVE_MASK;
-        levels = temp;
-        max = newMax;
-    }
 
-    // inactivates current level and removes nested levels
-    public void remove( int level, int depth )
-    {
-        for ( int i = 0; i < max; i++ )
+        int[] levelSequences = sequences[level];
+        if ( levelSequences == null )
         {
-            if ( depth == 0 && ( (levels[i] & ~ACTIVE_MASK) / FACTOR ) == level )
-            {
-                // inactivate but leave so sequence can be calculated
-                levels[i] &= ~ACTIVE_MASK;
-            }
-
-            if ( ( (levels[i] & ~ACTIVE_MASK) / FACTOR ) > ( level + depth ) )
-            {
-                levels[i] = 0;
-            }
+            levelSequences = sequences[level] = new int[INCREMENT];
+        }
+        else if ( count == levelSequences.length )
+        {
+            levelSequences = sequences[level] = Arrays.copyOf( levelSequences, count * 2 );
         }
-    }
 
-    public void clear( )
-    {
-        for ( int i = 0; i < max; i++ )
+        // siblings come in order, anything else is moved into place
+        int i = count;
+        while ( i > 0 && levelSequences[i - 1] > sequence )
         {
-            levels[i] = 0;
+            levelSequences[i] = levelSequences[i - 1];
+            i--;
         }
+        levelSequences[i] = sequence;
+        counts[level] = count + 1;
     }
 
-    public boolean hasMatches( )
+    // levels are added deepest last but for one left open by a void element or a match that did not close
+    private void addLevel( int level )
     {
-        for ( int i = 0; i < max; i++ )
+        if ( size == levels.length )
         {
-            if ( ( levels[i] & ACTIVE_MASK ) != 0 )
-            {
-                return true;
-            }
+            levels = Arrays.copyOf( levels, size * 2 );
         }
 
-        return false;
+        int i = size;
+        while ( i > 0 && levels[i - 1] > level )
+        {
+            levels[i] = levels[i - 1];
+            i--;
+        }
+        levels[i] = level;
+        size++;
     }
 
-    public void resetIndex( )
+    // removes the matches at levels deeper than level + depth, and with depth 0 those at level too
+    public void remove( int level, int depth )
     {
-        current = 0;
+        int from = ( depth == 0 ) ? level : ( level + depth + 1 );
+
+        while ( size > 0 && levels[size - 1] >= from )
+        {
+            counts[levels[--size]] = 0;
+        }
     }
 
-    public int getNext( int level )
+    public void clear( )
     {
-        while ( current < max )
+        while ( size > 0 )
         {
-            if ( ( (levels[current] & ~ACTIVE_MASK) / FACTOR ) == level )
-            {
-                return levels[current++];
-            }
-            current++;
+            counts[levels[--size]] = 0;
         }
+    }
 
-        return -1;
+    public boolean hasMatches( )
+    {
+        return ( size > 0 );
     }
 
-    public int getNext( )
+    // the deepest level of a match, -1 if there is none
+    public int getDeepest( )
     {
-        while ( current < max )
-        {
-            if ( ( levels[current] & ACTIVE_MASK ) != 0 )
-            {
-                return levels[current++];
-            }
-            current++;
-        }
+        return ( size == 0 ) ? -1 : levels[size - 1];
+    }
 
-        return -1;
+    // the shallowest level of a match, -1 if there is none
+    public int getShallowest( )
+    {
+        return ( size == 0 ) ? -1 : levels[0];
     }
 
-    public static int getLevel( int num )
+    public boolean hasLevel( int level )
     {
-        return ( (num & ~ACTIVE_MASK) / FACTOR );
+        return ( level >= 0 && level < counts.length && counts[level] > 0 );
     }
 
-    public static int getSequence( int num )
+    public boolean hasSequence( int level, int sequence )
     {
-        return ( (num & ~ACTIVE_MASK) % FACTOR );
+        return hasLevel( level ) && Arrays.binarySearch( sequences[level], 0, counts[level], sequence ) >= 0;
     }
 
-    public static boolean isActive( int num )
+    // the first sequence matched at the level, Integer.MAX_VALUE if there is none
+    public int getFirstSequence( int level )
     {
-        return ( ( num & ACTIVE_MASK ) != 0 );
+        return hasLevel( level ) ? sequences[level][0] : Integer.MAX_VALUE;
     }
 
     public String toString()
@@ -134,16 +132,15 @@ public class LevelsMatchedArray
         StringBuffer sb = new StringBuffer();
 
         sb.append( "{" );
-        for ( int i = 0; i < max; i++ )
+        for ( int i = 0; i < size; i++ )
         {
-            if ( levels[i] != 0 )
+            int level = levels[i];
+            for ( int j = 0; j < counts[level]; j++ )
             {
                 sb.append( "<" );
-                sb.append( ((levels[i] & ~ACTIVE_MASK) / FACTOR ) );
-                sb.append( "," );
-                sb.append( ((levels[i] & ~ACTIVE_MASK) % FACTOR ) );
+                sb.append( level );
                 sb.append( "," );
-                sb.append( (((levels[i] & ACTIVE_MASK) != 0) ? "ACTIVE" : "INACTIVE") );
+                sb.append( sequences[level][j] );
                 sb.append( ">" );
             }
         }
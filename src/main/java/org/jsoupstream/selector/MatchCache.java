@@ -0,0 +1,197 @@
+package org.jsoupstream.selector;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The results of the component tests of a Stylesheet for elements seen before, shared by all documents parsed
+ * with it, so a page made from the same template as one before gets the results of its elements without
+ * testing them again. Enable it with Parser.setMatchCacheSize().
+ *
+ * An element is looked up by its Signature: the tag and the attributes any selector of the stylesheet names,
+ * with their values. The signature is compared in full, not just its hash, so a hit has exactly the results
+ * testing would give. An element whose signature is longer than Signature.MAX_LENGTH is tested and not kept.
+ * The results of :nth-child tests depend on the position of the element and are not kept, nor anything about
+ * the ancestors: a hit only saves testing the element, Selector.check() still follows the ancestors.
+ *
+ * At most getCapacity() elements are kept, so at most getCapacity() * Signature.MAX_LENGTH chars of signatures
+ * and one bit per test each. The elements are split by hash between SEGMENTS segments, each with its own lock
+ * and share of the capacity, the least recently used of a segment is dropped for a new one. Can be used by any
+ * number of threads at once, they only wait for each other on the same segment.
+ */
+public class MatchCache
+{
+    static final int SEGMENTS = 16;
+
+    private final int capacity;
+    private final Segment[] segments;
+
+    // an LRU map of part of the elements, guarded by itself
+    private static final class Segment extends LinkedHashMap<Signature, BitSet>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        Segment( int capacity )
+        {
+            super( 16, 0.75f, true );
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry( Map.Entry<Signature, BitSet> eldest )
+        {
+            if ( size() > capacity )
+            {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    MatchCache( int capacity )
+    {
+        this.capacity = capacity;
+
+        // no more segments than elements, so each keeps at least one
+        int count = 1;
+        while ( count * 2 <= Math.min( SEGMENTS, capacity ) )
+        {
+            count *= 2;
+        }
+        this.segments = new Segment[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            segments[i] = new Segment( capacity / count + ( ( i < capacity % count ) ? 1 : 0 ) );
+        }
+    }
+
+    private Segment getSegment( Signature signature )
+    {
+        int hash = signature.hashCode();
+        return segments[( hash ^ ( hash >>> 16 ) ) & ( segments.length - 1 )];
+    }
+
+    /**
+     * The results of the element, null if it is not kept. The BitSet returned must not be changed.
+     */
+    BitSet get( Signature signature )
+    {
+        Segment segment = getSegment( signature );
+        synchronized ( segment )
+        {
+            BitSet bits = segment.get( signature );
+            if ( bits == null )
+            {
+                segment.misses++;
+            }
+            else
+            {
+                segment.hits++;
+            }
+            return bits;
+        }
+    }
+
+    /**
+     * Keeps the results of the element under a copy of its signature, the BitSet must not be changed afterwards.
+     */
+    void put( Signature signature, BitSet bits )
+    {
+        Signature key = signature.copy();
+        Segment segment = getSegment( key );
+        synchronized ( segment )
+        {
+            segment.put( key, bits );
+        }
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits()
+    {
+        long hits = 0;
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMisses()
+    {
+        long misses = 0;
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    public long getEvictions()
+    {
+        long evictions = 0;
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * The share of the elements looked up that were found, 0 if none were looked up.
+     */
+    public double getHitRate()
+    {
+        long hits = getHits();
+        long misses = getMisses();
+        return ( hits + misses == 0 ) ? 0 : (double)hits / ( hits + misses );
+    }
+
+    /**
+     * Drops all elements and resets the counts.
+     */
+    public void clear()
+    {
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                segment.clear();
+                segment.hits = 0;
+                segment.misses = 0;
+                segment.evictions = 0;
+            }
+        }
+    }
+}
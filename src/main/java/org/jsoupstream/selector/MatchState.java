@@ -0,0 +1,300 @@
+package org.jsoupstream.selector;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.NoSuchElementException;
+import org.jsoupstream.HtmlToken;
+
+/**
+ * The match state of all rules of a Stylesheet for one document: one Selector per Rule, in the order of the
+ * stylesheet. A MatchState is used by a single thread.
+ *
+ * The element being checked is read from its tokens once, and the results of the shared component tests of
+ * the Stylesheet are kept for it, so a test is evaluated once per element however many selectors use it. With
+ * a MatchCache the results of an element seen before, in this document or another, are taken from there.
+ */
+public class MatchState
+{
+    private final Stylesheet stylesheet;
+    private final List<Selector> selectors;
+    private final BitSet live = new BitSet(); // selectors that may have an active match
+    private int unexpired = 0; // selectors not expired
+    private final BitSet marked = new BitSet(); // the candidates for the element
+    private final Candidates candidates = new Candidates();
+    private boolean changed = false; // actions ran since the element was marked
+    private final boolean[] results; // of the shared tests, valid where the stamp is the epoch
+    private final int[] stamps;
+    private final TestOrder[] testOrders; // of the shared tests, learnt from the elements of this state only
+    private int epoch = 0;
+    private List<HtmlToken> lastQueue; // the element the results are for
+    private int lastSequence;
+    private final Element element = new Element();
+    private List<HtmlToken> elementQueue; // the tokens element was read from
+    private final MatchCache matchCache; // null if not enabled
+    private final boolean[] cached; // the tests the cache keeps
+    private final Signature signature = new Signature(); // of the element, written again for each
+    private BitSet cachedResults; // of the element, valid where cached if cacheEpoch is the epoch
+    private int cacheEpoch = -1;
+
+    MatchState( Stylesheet stylesheet )
+    {
+        this.stylesheet = stylesheet;
+        this.results = new boolean[stylesheet.getTestCount()];
+        this.stamps = new int[stylesheet.getTestCount()];
+        this.testOrders = new TestOrder[stylesheet.getTestCount()];
+        for ( int test = 0; test < testOrders.length; test++ )
+        {
+            testOrders[test] = stylesheet.newTestOrder( test );
+        }
+        this.matchCache = stylesheet.getMatchCache();
+        this.cached = new boolean[stylesheet.getTestCount()];
+        for ( int test : stylesheet.getCachedTests() )
+        {
+            cached[test] = true;
+        }
+        ArrayList<Selector> selectors = new ArrayList<Selector>( stylesheet.getRules().size() );
+        for ( Rule rule : stylesheet.getRules() )
+        {
+            selectors.add( new Selector( rule, this, selectors.size() ) );
+        }
+        this.selectors = Collections.unmodifiableList( selectors );
+        for ( Selector selector : selectors )
+        {
+            if ( ! selector.isExpired() )
+            {
+                unexpired++;
+            }
+        }
+    }
+
+    public List<Selector> getSelectors()
+    {
+        return selectors;
+    }
+
+    /**
+     * The selectors check() has to be called with for a start tag at the level, in the order of the stylesheet.
+     * Those are the selectors with a component the element has the key of and whose components before it all
+     * have an active match, and those with an active match at the level or deeper, which a non matching element
+     * clears. check() returns false for all others and leaves them as they are.
+     *
+     * The components before have matched the ancestors (or preceding siblings) of the element, so this rejects a
+     * selector like "section.x div.y a" at every a without a div.y above it, without looking at its levels.
+     *
+     * Actions executed while iterating may change the element, the selectors not reached yet are then marked
+     * again. The Iterable returned is reused by the next call.
+     *
+     * @param tokenQueue the tokens of the start tag
+     */
+    public Iterable<Selector> getCandidates( List<HtmlToken> tokenQueue, int level )
+    {
+        marked.clear();
+        mark( tokenQueue, level );
+        candidates.tokenQueue = tokenQueue;
+        candidates.level = level;
+        return candidates;
+    }
+
+    private void mark( List<HtmlToken> tokenQueue, int level )
+    {
+        Element element = getElement( tokenQueue );
+        String id = element.getId();
+        Set<String> classes = element.getClasses();
+
+        changed = false;
+        mark( stylesheet.getUniversalRules() );
+        if ( element.getTag() != null )
+        {
+            mark( stylesheet.getTagRules( element.getTag() ) );
+        }
+        if ( id != null )
+        {
+            mark( stylesheet.getAttributeRules( "#" + id ) );
+        }
+        if ( classes != null )
+        {
+            for ( String name : classes )
+            {
+                mark( stylesheet.getAttributeRules( "." + name ) );
+            }
+        }
+
+        for ( int i = live.nextSetBit( 0 ); i >= 0; i = live.nextSetBit( i + 1 ) )
+        {
+            int deepest = selectors.get( i ).getDeepest();
+            if ( deepest < 0 )
+            {
+                live.clear( i );
+            }
+            else if ( deepest >= level )
+            {
+                marked.set( i );
+            }
+        }
+    }
+
+    // marks the rules the element can get further in: those with the first component of the key they have not
+    // got past yet, at a position they have got to
+    private void mark( Stylesheet.Bucket bucket )
+    {
+        for ( int i = 0; i < bucket.size; i++ )
+        {
+            if ( bucket.positions[i] <= selectors.get( bucket.rules[i] ).getReach() )
+            {
+                marked.set( bucket.rules[i] );
+            }
+        }
+    }
+
+    /**
+     * How many of the selectors are not expired, kept up to date as they expire, so the parser can tell when it
+     * is done without asking each one.
+     */
+    public int getUnexpiredCount()
+    {
+        return unexpired;
+    }
+
+    void expiredChanged( boolean expired )
+    {
+        unexpired += expired ? -1 : 1;
+    }
+
+    void setLive( int selector )
+    {
+        live.set( selector );
+    }
+
+    /**
+     * Called after actions ran, they may have changed the tokens of the element being checked.
+     */
+    void elementChanged()
+    {
+        changed = true;
+        epoch++;
+        elementQueue = null;
+    }
+
+    private Element getElement( List<HtmlToken> tokenQueue )
+    {
+        if ( tokenQueue != elementQueue )
+        {
+            element.parse( tokenQueue );
+            elementQueue = tokenQueue;
+        }
+        return element;
+    }
+
+    /**
+     * Component.matchesElement() of a component of a rule, evaluated once per element for all components that
+     * share its test. The parser checks all selectors for an element with the same tokenQueue.
+     */
+    boolean matchesElement( int rule, int component, List<HtmlToken> tokenQueue, int sequence )
+    {
+        if ( tokenQueue != lastQueue || sequence != lastSequence )
+        {
+            epoch++;
+            lastQueue = tokenQueue;
+            lastSequence = sequence;
+        }
+
+        int test = stylesheet.getTest( rule, component );
+        if ( matchCache != null && cached[test] && sequence >= 0 )
+        {
+            if ( cacheEpoch != epoch )
+            {
+                cachedResults = getCachedResults( getElement( tokenQueue ), sequence );
+                cacheEpoch = epoch;
+            }
+            return cachedResults.get( test );
+        }
+        if ( stamps[test] != epoch )
+        {
+            results[test] = stylesheet.matches( test, getElement( tokenQueue ), sequence, testOrders[test] );
+            stamps[test] = epoch;
+        }
+        return results[test];
+    }
+
+    // the results of all cached tests for the element, from the cache or by testing them
+    private BitSet getCachedResults( Element element, int sequence )
+    {
+        element.getSignature( stylesheet.getAttributeNames(), signature );
+        boolean keep = ! signature.isTooLong();
+        BitSet bits = keep ? matchCache.get( signature ) : null;
+
+        if ( bits == null )
+        {
+            bits = new BitSet( cached.length );
+            for ( int test : stylesheet.getCachedTests() )
+            {
+                if ( stylesheet.matches( test, element, sequence, testOrders[test] ) )
+                {
+                    bits.set( test );
+                }
+            }
+            if ( keep )
+            {
+                matchCache.put( signature, bits );
+            }
+        }
+        return bits;
+    }
+
+    private class Candidates implements Iterable<Selector>, Iterator<Selector>
+    {
+        private List<HtmlToken> tokenQueue;
+        private int level;
+        private int last; // the selector returned last
+        private int next;
+
+        public Iterator<Selector> iterator()
+        {
+            last = -1;
+            next = marked.nextSetBit( 0 );
+            return this;
+        }
+
+        public boolean hasNext()
+        {
+            if ( changed )
+            {
+                // marking again only adds, the selectors already passed are not returned again
+                mark( tokenQueue, level );
+                next = marked.nextSetBit( last + 1 );
+            }
+            return ( next >= 0 );
+        }
+
+        public Selector next()
+        {
+            if ( ! hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = marked.nextSetBit( last + 1 );
+            Selector selector = selectors.get( last );
+            return selector;
+        }
+    }
+
+    /**
+     * Clears all matches so the state can be used for another document.
+     */
+    public void reset()
+    {
+        for ( Selector selector : selectors )
+        {
+            selector.reset();
+        }
+        live.clear();
+        lastQueue = null;
+        elementQueue = null;
+        epoch++;
+    }
+}
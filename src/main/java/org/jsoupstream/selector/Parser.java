@@ -28,6 +28,7 @@ public class Parser
     private static final Pattern NTH_CHILD_AB = Pattern.compile("nth-child\\(((\\+|-)?(\\d+)?)n((\\+|-)?\\d+)?\\)", Pattern.CASE_INSENSITIVE);
     private static final Pattern NTH_CHILD_B  = Pattern.compile("nth-child\\(((\\+|-)?(\\d+))\\)", Pattern.CASE_INSENSITIVE);
     Lexer lex;
+    private int matchCacheSize = 0;
 
     public Parser(InputStream input)
     {
@@ -46,13 +47,23 @@ public class Parser
         this.lex = new Lexer( in );
     }
 
-    // TODO: Build the list of selectors
-    // public List<Selector> parse() throws IOException, ParseException
-    public List<Selector> parse() throws IOException, ParseException
+    /**
+     * Keeps the component test results of up to size distinct elements in a MatchCache of the Stylesheet, so
+     * documents from the same templates reuse them. 0 (the default) for no cache.
+     */
+    public void setMatchCacheSize( int size )
+    {
+        this.matchCacheSize = size;
+    }
+
+    /**
+     * Compiles the selectors. The Stylesheet returned can be shared by any number of parses.
+     */
+    public Stylesheet parse() throws IOException, ParseException
     {
         int selector_count = 0;
-        ArrayList<Selector> selectors = new ArrayList<Selector>();
-        Selector current_selector = null;
+        ArrayList<Rule> selectors = new ArrayList<Rule>();
+        Rule current_selector = null;
         Component current_component = null;
         AttributeSelector current_attribute_selector = null;
         Action current_action = null;
@@ -89,7 +100,7 @@ public class Parser
                     if ( combinator == Component.CombinatorType.ROOT )
                     {
                         selector_count++;
-                        current_selector = new Selector( selector_count );
+                        current_selector = new Rule( selector_count );
                     }
                     current_component = current_selector.addComponent( text, combinator );
                 }
@@ -100,7 +111,7 @@ public class Parser
                     if ( combinator == Component.CombinatorType.ROOT )
                     {
                         selector_count++;
-                        current_selector = new Selector( selector_count );
+                        current_selector = new Rule( selector_count );
                     }
                     current_component = current_selector.addComponent( "*", combinator );
                 }
@@ -129,7 +140,7 @@ public class Parser
                     if ( combinator == Component.CombinatorType.ROOT )
                     {
                         selector_count++;
-                        current_selector = new Selector( selector_count );
+                        current_selector = new Rule( selector_count );
                     }
                     current_component = current_selector.addComponent( "*", combinator );
                 }
@@ -251,7 +262,7 @@ public class Parser
                     if ( combinator == Component.CombinatorType.ROOT )
                     {
                         selector_count++;
-                        current_selector = new Selector( selector_count );
+                        current_selector = new Rule( selector_count );
                     }
                     current_component = current_selector.addComponent( "*", combinator );
                 }
@@ -272,7 +283,7 @@ public class Parser
                     if ( combinator == Component.CombinatorType.ROOT )
                     {
                         selector_count++;
-                        current_selector = new Selector( selector_count );
+                        current_selector = new Rule( selector_count );
                     }
                     current_component = current_selector.addComponent( "*", combinator );
                 }
@@ -329,6 +340,6 @@ public class Parser
             selectors.add( current_selector );
         }
 
-        return selectors;
+        return new Stylesheet( selectors, matchCacheSize );
     }
 }
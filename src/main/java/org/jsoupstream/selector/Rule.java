@@ -0,0 +1,149 @@
+package org.jsoupstream.selector;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * A compiled selector with all Components (combination of Combinator, Element, and Attribute selectors)
+ * and associated Action(s). A Rule is built by the Parser and not changed afterwards, so it can be shared by
+ * any number of documents parsed at the same time. The match state of a document is kept in a Selector.
+ */
+public class Rule
+{
+    private final int line; // used for messages
+    private final ArrayList<Component> components = new ArrayList<Component>();
+    private final ArrayList<Action> actions = new ArrayList<Action>();
+
+    private boolean before = false; // :before pseudo selector
+    private boolean after = false; // :after pseudo selector
+    private int start = 1; // when to start executing actions
+    private int count = 0; // how many times to executing actions ( 0 means unlimited )
+
+    Rule(int line)
+    {
+        this.line = line;
+    }
+
+    // creates and adds a new component to the end of the list
+    Component addComponent(String tag, Component.CombinatorType type)
+    {
+        Component component = new Component(tag, type);
+        this.components.add( component );
+        return component;
+    }
+
+    void addAction(Action action)
+    {
+        this.actions.add( action );
+    }
+
+    void setBefore(boolean before)
+    {
+        this.before = before;
+    }
+
+    void setAfter(boolean after)
+    {
+        this.after = after;
+    }
+
+    void setStart(int start)
+    {
+        this.start = start;
+    }
+
+    void setCount(int count)
+    {
+        this.count = count;
+    }
+
+    public Component getComponent(int index)
+    {
+        if ( index >= 0 && index < components.size() )
+        {
+            return this.components.get( index );
+        }
+        return null;
+    }
+
+    public List<Component> getComponents()
+    {
+        return Collections.unmodifiableList( this.components );
+    }
+
+    public List<Action> getActions()
+    {
+        return Collections.unmodifiableList( this.actions );
+    }
+
+    public boolean isBefore()
+    {
+        return this.before;
+    }
+
+    public boolean isAfter()
+    {
+        return this.after;
+    }
+
+    public int getStart()
+    {
+        return start;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public boolean isBuffering()
+    {
+        if ( before || after )
+        {
+            return false;
+        }
+        else
+        {
+            return true;
+        }
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer( "Selector "+line+": " );
+        for ( Component component : components )
+        {
+            sb.append( component );
+        }
+        if ( before )
+        {
+            sb.append( ":before" );
+        }
+        if ( after )
+        {
+            sb.append( ":after" );
+        }
+        if ( start != 1 )
+        {
+            sb.append( ":start(" );
+            sb.append( start );
+            sb.append( ")" );
+        }
+        if ( count > 0 )
+        {
+            sb.append( ":count(" );
+            sb.append( count );
+            sb.append( ")" );
+        }
+        sb.append( " {" );
+        for ( Action action : actions )
+        {
+            sb.append( action );
+            sb.append( ";" );
+        }
+        sb.append( "}" );
+
+        return sb.toString();
+    }
+}
@@ -2,67 +2,69 @@ package org.jsoupstream.selector;
 
 import java.util.List;
 import java.util.Set;
-import java.util.ArrayList;
 import java.util.ArrayDeque;
-import java.util.Iterator;
 import org.jsoupstream.HtmlToken;
 import org.jsoupstream.SymbolTable;
 
 /**
- * Represents a selector with all Components (combination of Combinator, Element, and Attribute selectors)
- * and associated Action(s)
+ * The match state of a Rule while parsing one document: how often it matched and executed, whether it is done
+ * and the levels its components matched at. This is the Selector handed to actions.
  */
 public class Selector
 {
-    private final int line; // used for messages
-    private final ArrayList<Component> components = new ArrayList<Component>();
-    private final ArrayList<Action> actions = new ArrayList<Action>();
+    private final Rule rule;
+    private final LevelsMatchedArray[] componentLevels; // levels matched by each component of the rule
+    private final TestOrder[] walkOrders; // of the ancestor walk and element test of each component after the first
+    private final MatchState owner; // null for a selector on its own
+    private final int index; // in the owner
+    private int deepest = -1; // the deepest level of an active match of any component
+    private int reach = 0; // how many components from the first have an active match
 
     private boolean done = false; // short circuit to optimize performance
-    private boolean before = false; // :before pseudo selector
-    private boolean after = false; // :after pseudo selector
-    private int start = 1; // when to start executing actions
-    private int count = 0; // how many times to executing actions ( 0 means unlimited )
     private int matches = 0; // how many times selector matched
     private int executes = 0; // how many times selector was exeuted
 
     private ArrayDeque<Integer> levelsMatched = new ArrayDeque<Integer>();
 
-    public Selector(int line)
+    public Selector(Rule rule)
     {
-        this.line = line;
+        this( rule, null, -1 );
     }
 
-    // creates and adds a new component to the end of the list
-    public Component addComponent(String tag, Component.CombinatorType type)
+    Selector(Rule rule, MatchState owner, int index)
     {
-        Component component = new Component(tag, type);
-        this.components.add( component );
-        return component;
+        this.rule = rule;
+        this.owner = owner;
+        this.index = index;
+        this.componentLevels = new LevelsMatchedArray[rule.getComponents().size()];
+        this.walkOrders = new TestOrder[componentLevels.length];
+        for ( int i = 0; i < componentLevels.length; i++ )
+        {
+            componentLevels[i] = new LevelsMatchedArray();
+            walkOrders[i] = ( i == 0 ) ? null : new TestOrder( new int[] { 1, 1 } );
+        }
     }
 
-    public Component getComponent(int index)
+    public Rule getRule()
     {
-        if ( index >= 0 && index < components.size() )
-        {
-            return this.components.get( index );
-        }
-        return null;
+        return this.rule;
     }
 
-    public List<Component> getComponents()
+    public Component getComponent(int index)
     {
-        return this.components;
+        return rule.getComponent( index );
     }
 
-    public void addAction(Action action)
+    public List<Component> getComponents()
     {
-        this.actions.add( action );
+        return rule.getComponents();
     }
 
     public void setDone(boolean done)
     {
+        boolean expired = isExpired();
         this.done = done;
+        expiredChanged( expired );
     }
 
     public boolean isDone()
@@ -70,44 +72,24 @@ public class Selector
         return this.done;
     }
 
-    public void setBefore(boolean before)
-    {
-        this.before = before;
-    }
-
     public boolean isBefore()
     {
-        return this.before;
-    }
-
-    public void setAfter(boolean after)
-    {
-        this.after = after;
+        return rule.isBefore();
     }
 
     public boolean isAfter()
     {
-        return this.after;
-    }
-
-    public void setStart(int start)
-    {
-        this.start = start;
-    }
-
-    public void setCount(int count)
-    {
-        this.count = count;
+        return rule.isAfter();
     }
 
     public int getStart()
     {
-        return start;
+        return rule.getStart();
     }
 
     public int getCount()
     {
-        return count;
+        return rule.getCount();
     }
 
     public boolean isExpired()
@@ -116,102 +98,78 @@ public class Selector
         {
             return true;
         }
-        else if ( count == 0 )
+        else if ( rule.getCount() == 0 )
         {
             return false;
         }
         else
         {
-            return ( executes >= count );
+            return ( executes >= rule.getCount() );
         }
     }
 
     public boolean isBuffering()
     {
-        if ( before || after )
-        {
-            return false;
-        }
-        else
-        {
-            return true;
-        }
+        return rule.isBuffering();
     }
 
     public boolean check( HtmlToken stackToken, List<HtmlToken> tokenQueue, int level, int sequence )
     {
-        boolean anyMatched = false;
+        List<Component> components = rule.getComponents();
         boolean matched = false;
         int depthMatched = 0;
-        int lastLevel = 0;
-        Component lastComponent = null;
-        Component component = null;
-        Component nextComponent = null;
+        LevelsMatchedArray lastLevels = null;
+        LevelsMatchedArray levels;
+        Component component;
+        Component nextComponent;
 
         // find how deep we have already matched
-        Iterator<Component> it = components.iterator();
-        if ( it.hasNext() )
+        for ( int i = 0; i < components.size(); i++ )
         {
-            nextComponent = it.next();
-        }
+            component = components.get( i );
+            nextComponent = ( (i + 1) < components.size() ) ? components.get( i + 1 ) : null;
+            levels = componentLevels[i];
 
-        while ( nextComponent != null )
-        {
-            component = nextComponent;
-            if ( it.hasNext() )
+            if ( depthMatched == 0 )
             {
-                nextComponent = it.next();
+                // root component - no previous level/sequence
+                matched = component.matchesCombinator( 0, 0, level, sequence ) && matchesElement( i, tokenQueue, sequence );
             }
             else
             {
-                nextComponent = null;
+                matched = matchesAfter( i, lastLevels, tokenQueue, level, sequence );
             }
 
-            if ( depthMatched == 0 )
+            if ( matched )
             {
-                // root component - no previous level/sequence
-                matched = component.matches( tokenQueue, 0, 0, level, sequence );
+                // save the level / sequence at which match occurred
+                levels.add( level, sequence );
             }
             else
-            {
-                lastComponent.resetLevelIndex();
-                lastLevel = lastComponent.getNextMatchedLevel();
-                matched = false;
-                while ( LevelsMatchedArray.getLevel( lastLevel ) > 0 )
-                {
-                    matched = component.matches( tokenQueue, LevelsMatchedArray.getLevel( lastLevel ), LevelsMatchedArray.getSequence( lastLevel ), level, sequence );
-                    if ( matched )
-                    {
-                        break;
-                    }
-
-                    lastLevel = lastComponent.getNextMatchedLevel();
-                }
-            }
-
-            if ( ! matched )
             {
                 if ( stackToken == null || stackToken.getSymbolType() != SymbolTable.Type.VOID_ELEMENT )
                 {
                     if ( nextComponent != null )
                     {
-                        component.clearLevelMatched( ( level + nextComponent.getLevelAdjustment() ), false );
+                        clearLevelMatched( levels, ( level + nextComponent.getLevelAdjustment() ), false );
                     }
                     else
                     {
-                        component.clearLevelMatched( level, false );
+                        clearLevelMatched( levels, level, false );
                     }
                 }
             }
 
-            if ( ! component.hasLevelsMatched() )
+            if ( ! levels.hasMatches() )
             {
                 break;
             }
             depthMatched++;
-            lastComponent = component;
+            lastLevels = levels;
         }
 
+        updateLevels();
+
         // if we matched all components, return true
         if ( matched && depthMatched == components.size() )
         {
@@ -223,22 +181,127 @@ public class Selector
         return false;
     }
 
+    // Whether the element matches component i and is related as its combinator requires to an element the one
+    // before matched. Neither has side effects, they are tested in the order that rejects soonest: the walk over
+    // the matches before or the element test.
+    private boolean matchesAfter( int i, LevelsMatchedArray lastLevels, List<HtmlToken> tokenQueue, int level, int sequence )
+    {
+        TestOrder walkOrder = walkOrders[i];
+        boolean matched;
+
+        for ( int predicate : walkOrder.getOrder() )
+        {
+            matched = ( predicate == 0 ) ? matchesCombinator( i, lastLevels, level, sequence )
+                                         : matchesElement( i, tokenQueue, sequence );
+            if ( ! matched )
+            {
+                walkOrder.rejected( predicate );
+                return false;
+            }
+            walkOrder.passed( predicate );
+        }
+        return true;
+    }
+
+    // whether any active match of the component before is related to the element as component i requires
+    private boolean matchesCombinator( int i, LevelsMatchedArray lastLevels, int level, int sequence )
+    {
+        return rule.getComponent( i ).matchesCombinator( lastLevels, level, sequence );
+    }
+
     public void clearLevelMatched( int level, boolean implied )
     {
-        for ( Component component : components )
+        for ( LevelsMatchedArray levels : componentLevels )
+        {
+            clearLevelMatched( levels, level, implied );
+        }
+        updateLevels();
+    }
+
+    /**
+     * The deepest level any component has an active match at, -1 if none has. check() on an element at a deeper
+     * level only changes anything if the element has the key of one of the components.
+     */
+    int getDeepest()
+    {
+        return deepest;
+    }
+
+    /**
+     * How many components from the first have an active match. check() only gets to the component after those,
+     * a later one can only match once the ones before it have: an element that has the keys of later components
+     * only does not change anything.
+     */
+    int getReach()
+    {
+        return reach;
+    }
+
+    private void updateLevels()
+    {
+        boolean reached = true;
+
+        deepest = -1;
+        reach = 0;
+        for ( LevelsMatchedArray levels : componentLevels )
+        {
+            int levelDeepest = levels.getDeepest();
+            deepest = Math.max( deepest, levelDeepest );
+            reached = reached && ( levelDeepest >= 0 );
+            if ( reached )
+            {
+                reach++;
+            }
+        }
+        if ( deepest >= 0 && owner != null )
+        {
+            owner.setLive( index );
+        }
+    }
+
+    private boolean matchesElement( int component, List<HtmlToken> tokenQueue, int sequence )
+    {
+        if ( owner == null )
+        {
+            return rule.getComponent( component ).matchesElement( tokenQueue, sequence );
+        }
+        return owner.matchesElement( index, component, tokenQueue, sequence );
+    }
+
+    private static void clearLevelMatched( LevelsMatchedArray levels, int level, boolean implied )
+    {
+        if ( implied )
         {
-            component.clearLevelMatched( level, implied );
+            levels.remove( level, -1 );
+        }
+        else
+        {
+            levels.remove( level, 0 );
         }
     }
 
     public void reset( )
     {
+        boolean expired = isExpired();
         matches = 0;
         executes = 0;
         done = false;
-        for ( Component component : components )
+        levelsMatched.clear();
+        for ( LevelsMatchedArray levels : componentLevels )
         {
-            component.reset( );
+            levels.clear( );
+        }
+        deepest = -1;
+        reach = 0;
+        expiredChanged( expired );
+    }
+
+    // tells the owner when the selector expires, or no longer is
+    private void expiredChanged( boolean wasExpired )
+    {
+        if ( owner != null && isExpired() != wasExpired )
+        {
+            owner.expiredChanged( ! wasExpired );
         }
     }
 
@@ -256,12 +319,12 @@ public class Selector
         }
         levelsMatched.pop();
 
-        if ( matches < start || isExpired() )
+        if ( matches < rule.getStart() || isExpired() )
         {
             return;
         }
 
-        for (Action action : actions)
+        for (Action action : rule.getActions())
         {
             // all passed parameters are strings
             if ( ! action.execute( this, tokenQueue ) )
@@ -269,6 +332,11 @@ public class Selector
                 break;
             }
         }
+        if ( owner != null )
+        {
+            // the actions may have changed the tokens of the element
+            owner.elementChanged();
+        }
 
         if ( removeSet != null && levelsMatched.size() == 0 )
         {
@@ -277,7 +345,9 @@ public class Selector
 
         this.clearLevelMatched( level, implied );
 
+        boolean expired = isExpired();
         executes++;
+        expiredChanged( expired );
         return;
     }
 
@@ -308,7 +378,7 @@ public class Selector
             token = queue.get( i );
             if ( token != null )
             {
-                sb.append( token.str );
+                sb.append( token.getString() );
             }
         }
     }
@@ -316,39 +386,6 @@ public class Selector
 
     public String toString()
     {
-        StringBuffer sb = new StringBuffer( "Selector "+line+": " );
-        for ( Component component : components )
-        {
-            sb.append( component );
-        }
-        if ( before )
-        {
-            sb.append( ":before" );
-        }
-        if ( after )
-        {
-            sb.append( ":after" );
-        }
-        if ( start != 1 )
-        {
-            sb.append( ":start(" );
-            sb.append( start );
-            sb.append( ")" );
-        }
-        if ( count > 0 )
-        {
-            sb.append( ":count(" );
-            sb.append( count );
-            sb.append( ")" );
-        }
-        sb.append( " {" );
-        for ( Action action : actions )
-        {
-            sb.append( action );
-            sb.append( ";" );
-        }
-        sb.append( "}" );
-
-        return sb.toString();
+        return rule.toString();
     }
 }
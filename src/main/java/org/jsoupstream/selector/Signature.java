@@ -0,0 +1,132 @@
+package org.jsoupstream.selector;
+
+import java.util.Arrays;
+
+/**
+ *  The key a MatchCache keeps the results of an element by: the tag and the attributes any selector names, with
+ *  their values, each part preceded by its length. A MatchState writes the signature of each element into the
+ *  same object, so looking one up makes no garbage, the cache keeps a copy.
+ *
+ *  A signature longer than MAX_LENGTH is not kept, so the cache holds at most MAX_LENGTH chars per element
+ *  however long the attribute values of a page are.
+ */
+final class Signature
+{
+    static final int MAX_LENGTH = 256;
+
+    private static final char NULL = '\uffff'; // the length of a missing part, longer than any part kept
+
+    private char[] chars;
+    private int length = 0;
+    private int hash = 0;
+
+    Signature()
+    {
+        this.chars = new char[64];
+    }
+
+    private Signature( char[] chars, int hash )
+    {
+        this.chars = chars;
+        this.length = chars.length;
+        this.hash = hash;
+    }
+
+    void clear()
+    {
+        length = 0;
+        hash = 0;
+    }
+
+    /**
+     * Appends a part, null for one that is missing.
+     */
+    void append( String part )
+    {
+        if ( part == null )
+        {
+            append( NULL );
+            return;
+        }
+
+        int partLength = part.length();
+        if ( length + 1 + partLength > MAX_LENGTH )
+        {
+            length = MAX_LENGTH + 1;
+            return;
+        }
+        append( (char)partLength );
+        ensureCapacity( length + partLength );
+        part.getChars( 0, partLength, chars, length );
+        for ( int i = 0; i < partLength; i++ )
+        {
+            hash = 31 * hash + chars[length++];
+        }
+    }
+
+    private void append( char c )
+    {
+        if ( length > MAX_LENGTH )
+        {
+            return;
+        }
+        ensureCapacity( length + 1 );
+        chars[length++] = c;
+        hash = 31 * hash + c;
+    }
+
+    private void ensureCapacity( int capacity )
+    {
+        if ( capacity > chars.length )
+        {
+            chars = Arrays.copyOf( chars, Math.max( capacity, chars.length * 2 ) );
+        }
+    }
+
+    /**
+     * Whether the signature is longer than MAX_LENGTH, then the element is not looked up.
+     */
+    boolean isTooLong()
+    {
+        return ( length > MAX_LENGTH );
+    }
+
+    /**
+     * A copy of the signature that is not changed by the next element.
+     */
+    Signature copy()
+    {
+        return new Signature( Arrays.copyOf( chars, length ), hash );
+    }
+
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    public boolean equals( Object o )
+    {
+        if ( ! ( o instanceof Signature ) )
+        {
+            return false;
+        }
+        Signature other = (Signature)o;
+        if ( other.hash != hash || other.length != length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( other.chars[i] != chars[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString()
+    {
+        return new String( chars, 0, Math.min( length, MAX_LENGTH ) );
+    }
+}
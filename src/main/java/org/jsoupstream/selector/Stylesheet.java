@@ -0,0 +1,230 @@
+package org.jsoupstream.selector;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The compiled rules of a CSS selector file as returned by Parser.parse(). A Stylesheet is immutable and can
+ * be used by any number of threads at once, each document parsed gets its own MatchState.
+ *
+ * The rules are indexed by the keys of their components (tag name, "#id" or ".class"), so an element only has
+ * to be checked against the rules that have a component it can match, and that have matched all components
+ * before it. Components that test an element the same way share one test however many rules they are in, so
+ * each is evaluated once per element. With Parser.setMatchCacheSize() the results are also kept across
+ * documents in a MatchCache.
+ */
+public class Stylesheet
+{
+    /**
+     * The rules with a component of one key, in order, and the position of the first such component in each.
+     */
+    static final class Bucket
+    {
+        int[] rules = new int[4];
+        int[] positions = new int[4];
+        int size = 0;
+
+        // the rules are added in order, so a rule with several components of the key is already last
+        private void add( int rule, int position )
+        {
+            if ( size > 0 && rules[size - 1] == rule )
+            {
+                return;
+            }
+            if ( size == rules.length )
+            {
+                rules = Arrays.copyOf( rules, (size * 2) );
+                positions = Arrays.copyOf( positions, (size * 2) );
+            }
+            rules[size] = rule;
+            positions[size++] = position;
+        }
+    }
+
+    private static final Bucket NONE = new Bucket();
+
+    private final List<Rule> rules;
+    private final Map<String, Bucket> tagIndex = new TreeMap<String, Bucket>( String.CASE_INSENSITIVE_ORDER );
+    private final Map<String, Bucket> attributeIndex = new HashMap<String, Bucket>();
+    private final Bucket universal = new Bucket(); // rules with a component any element can match
+    private final int[][] tests; // the shared test of each component of each rule
+    private final Component[] testComponents; // a component of each shared test
+    private final int[] cachedTests; // the shared tests without :nth-child, their results can be cached
+    private final Set<String> attributeNames = new TreeSet<String>( String.CASE_INSENSITIVE_ORDER );
+    private final MatchCache matchCache; // null if not enabled
+
+    /**
+     * @param cacheSize the number of elements a MatchCache keeps the test results of, 0 for no cache
+     */
+    Stylesheet( List<Rule> rules, int cacheSize )
+    {
+        this.rules = Collections.unmodifiableList( new ArrayList<Rule>( rules ) );
+
+        Map<List<Object>, Integer> testKeys = new HashMap<List<Object>, Integer>();
+        ArrayList<Component> testComponents = new ArrayList<Component>();
+        ArrayList<Integer> cachedTests = new ArrayList<Integer>();
+        this.tests = new int[this.rules.size()][];
+
+        for ( int i = 0; i < this.rules.size(); i++ )
+        {
+            List<Component> components = this.rules.get( i ).getComponents();
+            tests[i] = new int[components.size()];
+            for ( int j = 0; j < components.size(); j++ )
+            {
+                Component component = components.get( j );
+                Integer test = testKeys.get( component.getTestKey() );
+                if ( test == null )
+                {
+                    test = testKeys.size();
+                    testKeys.put( component.getTestKey(), test );
+                    testComponents.add( component );
+                    if ( component.getNthChildA() == 1 && component.getNthChildB() == 0 )
+                    {
+                        cachedTests.add( test );
+                    }
+                }
+                for ( AttributeSelector attribute : component.getAttributes() )
+                {
+                    attributeNames.add( attribute.getAttributeName() );
+                }
+                tests[i][j] = test;
+
+                String key = component.getIndexKey();
+                if ( key == null )
+                {
+                    universal.add( i, j );
+                }
+                else if ( key.startsWith( "#" ) || key.startsWith( "." ) )
+                {
+                    attributeIndex.computeIfAbsent( key, k -> new Bucket() ).add( i, j );
+                }
+                else
+                {
+                    tagIndex.computeIfAbsent( key, k -> new Bucket() ).add( i, j );
+                }
+            }
+        }
+
+        this.testComponents = testComponents.toArray( new Component[testComponents.size()] );
+        this.cachedTests = new int[cachedTests.size()];
+        for ( int i = 0; i < this.cachedTests.length; i++ )
+        {
+            this.cachedTests[i] = cachedTests.get( i );
+        }
+        this.matchCache = ( cacheSize > 0 ) ? new MatchCache( cacheSize ) : null;
+    }
+
+    public List<Rule> getRules()
+    {
+        return rules;
+    }
+
+    /**
+     * The rules with a component of the tag name.
+     */
+    Bucket getTagRules( String tag )
+    {
+        Bucket bucket = tagIndex.get( tag );
+        return ( bucket == null ) ? NONE : bucket;
+    }
+
+    /**
+     * The rules with a component of the key, "#id" or ".class".
+     */
+    Bucket getAttributeRules( String key )
+    {
+        Bucket bucket = attributeIndex.get( key );
+        return ( bucket == null ) ? NONE : bucket;
+    }
+
+    /**
+     * The rules with a component every element has the key of.
+     */
+    Bucket getUniversalRules()
+    {
+        return universal;
+    }
+
+    /**
+     * The shared test of a component of a rule, from 0 to getTestCount() - 1.
+     */
+    int getTest( int rule, int component )
+    {
+        return tests[rule][component];
+    }
+
+    int getTestCount()
+    {
+        return testComponents.length;
+    }
+
+    /**
+     * The result of a shared test for the element.
+     *
+     * @param testOrder from newTestOrder( test ), null for the order written
+     */
+    boolean matches( int test, Element element, int sequence, TestOrder testOrder )
+    {
+        return testComponents[test].matchesElement( element, sequence, testOrder );
+    }
+
+    /**
+     * A new order to make the shared test in, adapted to the elements it is made of, null if it is not adapted.
+     * The Stylesheet is not changed by matching, each MatchState keeps the orders of its thread.
+     */
+    TestOrder newTestOrder( int test )
+    {
+        return testComponents[test].newTestOrder();
+    }
+
+    /**
+     * The shared tests whose results do not depend on the position of the element, those a MatchCache keeps.
+     */
+    int[] getCachedTests()
+    {
+        return cachedTests;
+    }
+
+    /**
+     * The names of the attributes any selector tests, ignoring case.
+     */
+    Set<String> getAttributeNames()
+    {
+        return attributeNames;
+    }
+
+    /**
+     * The cache of test results shared by all documents parsed with the stylesheet, null unless enabled with
+     * Parser.setMatchCacheSize().
+     */
+    public MatchCache getMatchCache()
+    {
+        return matchCache;
+    }
+
+    /**
+     * Creates the state for matching the rules against one document.
+     */
+    public MatchState newMatchState()
+    {
+        return new MatchState( this );
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        for ( Rule rule : rules )
+        {
+            sb.append( rule );
+            sb.append( "\n" );
+        }
+        return sb.toString();
+    }
+}
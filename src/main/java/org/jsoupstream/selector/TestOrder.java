@@ -0,0 +1,83 @@
+package org.jsoupstream.selector;
+
+/**
+ *  The order to test the predicates of a conjunction in, adapted to how often each rejects. The predicates must
+ *  have no side effects, then any order gives the same result and the one rejecting soonest for its cost is
+ *  the fastest. How often a predicate was tested and rejected is counted, and every INTERVAL tests they are
+ *  ordered by rejects / tests / cost, starting from the order of their costs.
+ *
+ *  An order is used by one thread only: the MatchState and its Selectors keep their own, the Stylesheet shared
+ *  between threads is never written while matching.
+ */
+final class TestOrder
+{
+    static final int INTERVAL = 1024;
+
+    private final int[] costs;
+    private final int[] tested;
+    private final int[] rejected;
+    private int[] order;
+    private int count = 0;
+
+    /**
+     * @param costs the relative cost of each predicate
+     */
+    TestOrder( int[] costs )
+    {
+        this.costs = costs.clone();
+        this.tested = new int[costs.length];
+        this.rejected = new int[costs.length];
+        this.order = sort();
+    }
+
+    /**
+     * The predicates in the order to test them. Called before each test.
+     */
+    int[] getOrder()
+    {
+        if ( ++count >= INTERVAL )
+        {
+            count = 0;
+            order = sort();
+            for ( int i = 0; i < tested.length; i++ )
+            {
+                // older tests count half as much at each interval
+                tested[i] >>= 1;
+                rejected[i] >>= 1;
+            }
+        }
+        return order;
+    }
+
+    void passed( int predicate )
+    {
+        tested[predicate]++;
+    }
+
+    void rejected( int predicate )
+    {
+        tested[predicate]++;
+        rejected[predicate]++;
+    }
+
+    // highest score first, ties in the order of the predicates. A predicate not tested yet counts as rejecting
+    // half the time.
+    private int[] sort()
+    {
+        int[] sorted = new int[costs.length];
+        double[] scores = new double[costs.length];
+
+        for ( int i = 0; i < costs.length; i++ )
+        {
+            scores[i] = ( rejected[i] + 1.0 ) / ( tested[i] + 2.0 ) / costs[i];
+            int j = i;
+            while ( j > 0 && scores[sorted[j - 1]] < scores[i] )
+            {
+                sorted[j] = sorted[j - 1];
+                j--;
+            }
+            sorted[j] = i;
+        }
+        return sorted;
+    }
+}
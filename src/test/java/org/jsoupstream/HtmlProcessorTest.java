@@ -0,0 +1,184 @@
+package org.jsoupstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Flow;
+import org.junit.Test;
+
+public class HtmlProcessorTest
+{
+    private static final String CSS = "p { addAttribute('data-a','1') }";
+
+    /**
+     * UTF-8, but the decoder throws on a 0xFF byte, like the parser does on some malformed markup.
+     */
+    private static class FailingCharset extends Charset
+    {
+        FailingCharset()
+        {
+            super( "X-FAILING-UTF-8", null );
+        }
+
+        public boolean contains( Charset cs )
+        {
+            return false;
+        }
+
+        public CharsetDecoder newDecoder()
+        {
+            final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder();
+            return new CharsetDecoder( this, 1, 1 )
+            {
+                protected CoderResult decodeLoop( ByteBuffer in, CharBuffer out )
+                {
+                    for ( int i = in.position(); i < in.limit(); i++ )
+                    {
+                        if ( in.get( i ) == (byte)0xFF )
+                        {
+                            throw new IllegalArgumentException( "unexpected byte" );
+                        }
+                    }
+                    return utf8.decode( in, out, true );
+                }
+            };
+        }
+
+        public CharsetEncoder newEncoder()
+        {
+            return StandardCharsets.UTF_8.newEncoder();
+        }
+    }
+
+    private static class Upstream implements Flow.Subscription
+    {
+        long requested = 0;
+        boolean cancelled = false;
+
+        public void request( long n )
+        {
+            requested += n;
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+        }
+    }
+
+    private static class Downstream implements Flow.Subscriber<ByteBuffer>
+    {
+        private final boolean failOnNext;
+        int received = 0;
+        boolean completed = false;
+        Throwable error;
+
+        Downstream( boolean failOnNext )
+        {
+            this.failOnNext = failOnNext;
+        }
+
+        public void onSubscribe( Flow.Subscription subscription )
+        {
+            subscription.request( Long.MAX_VALUE );
+        }
+
+        public void onNext( ByteBuffer item )
+        {
+            received++;
+            if ( failOnNext )
+            {
+                throw new IllegalStateException( "subscriber failed" );
+            }
+        }
+
+        public void onError( Throwable throwable )
+        {
+            error = throwable;
+        }
+
+        public void onComplete()
+        {
+            completed = true;
+        }
+    }
+
+    private static HtmlParser newParser( Charset charset ) throws Exception
+    {
+        HtmlParser parser = new HtmlParser( new ByteArrayInputStream( CSS.getBytes( StandardCharsets.UTF_8 ) ) );
+        return new HtmlParser( parser.getStylesheet(), charset );
+    }
+
+    @Test
+    public void parserFailureIsSignalled() throws Exception
+    {
+        HtmlProcessor processor = new HtmlProcessor( newParser( new FailingCharset() ) );
+        Upstream upstream = new Upstream();
+        Downstream downstream = new Downstream( false );
+        processor.subscribe( downstream );
+        processor.onSubscribe( upstream );
+
+        byte[] html = { '<', 'p', (byte)0xFF, '>', 'a', '<', '/', 'p', '>' };
+        processor.onNext( ByteBuffer.wrap( html ) );
+
+        assertNotNull( downstream.error );
+        assertTrue( upstream.cancelled );
+        assertTrue( ! downstream.completed );
+
+        // later signals are still handled, not left waiting for the failed one
+        processor.onNext( ByteBuffer.wrap( "<p>b</p>".getBytes( StandardCharsets.UTF_8 ) ) );
+        processor.onComplete();
+        assertTrue( ! downstream.completed );
+    }
+
+    @Test
+    public void subscriberFailureIsSignalled() throws Exception
+    {
+        HtmlProcessor processor = new HtmlProcessor( newParser( StandardCharsets.UTF_8 ) );
+        Upstream upstream = new Upstream();
+        Downstream downstream = new Downstream( true );
+        processor.subscribe( downstream );
+        processor.onSubscribe( upstream );
+
+        processor.onNext( ByteBuffer.wrap( "<p>a</p>".getBytes( StandardCharsets.UTF_8 ) ) );
+        processor.onComplete();
+
+        assertEquals( 1, downstream.received );
+        assertTrue( downstream.error instanceof IllegalStateException );
+        assertTrue( upstream.cancelled );
+        assertTrue( ! downstream.completed );
+    }
+
+    @Test
+    public void documentIsTransformed() throws Exception
+    {
+        HtmlProcessor processor = new HtmlProcessor( newParser( StandardCharsets.UTF_8 ) );
+        Upstream upstream = new Upstream();
+        final StringBuilder out = new StringBuilder();
+        Downstream downstream = new Downstream( false )
+        {
+            public void onNext( ByteBuffer item )
+            {
+                out.append( StandardCharsets.UTF_8.decode( item ) );
+            }
+        };
+        processor.subscribe( downstream );
+        processor.onSubscribe( upstream );
+
+        processor.onNext( ByteBuffer.wrap( "<div><p>a".getBytes( StandardCharsets.UTF_8 ) ) );
+        processor.onNext( ByteBuffer.wrap( "</p></div>".getBytes( StandardCharsets.UTF_8 ) ) );
+        processor.onComplete();
+
+        assertTrue( downstream.completed );
+        assertTrue( out.toString(), out.toString().contains( "data-a" ) );
+    }
+}